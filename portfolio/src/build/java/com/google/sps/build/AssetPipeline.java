@@ -0,0 +1,284 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.build;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Build step which prepares static files of the webapp for long-lived caching.
+ * Images, .css and .js files are copied to /assets with the hash of their content in the name,
+ * so a changed file always gets a new url. Css and js are minified, App Engine compresses
+ * static files itself. References to the assets in css and html files are rewritten
+ * to the new names.
+ *
+ * Is compiled from src/build/java and run by Maven in prepare-package phase with the webapp
+ * directory and the output directory, so it is not packaged into the war.
+ */
+public final class AssetPipeline {
+  private static final String ASSETS_DIRECTORY = "assets";
+  private static final int HASH_LENGTH = 10;
+
+  private AssetPipeline() {}
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      throw new IllegalArgumentException("Usage: AssetPipeline <webapp directory> <output directory>");
+    }
+    Path webapp = Paths.get(args[0]);
+    Path output = Paths.get(args[1]);
+    Files.createDirectories(output.resolve(ASSETS_DIRECTORY));
+
+    // original url -> fingerprinted url. Images go first, because css refers to them
+    Map<String, String> urls = new LinkedHashMap<>();
+    for (Path image : list(webapp.resolve("images"), "")) {
+      byte[] content = Files.readAllBytes(image);
+      urls.put("/images/" + image.getFileName(), writeAsset(output, image, content));
+    }
+    for (Path style : list(webapp, ".css")) {
+      String css = rewriteUrls(minifyCss(read(style)), urls);
+      urls.put("/" + style.getFileName(), writeAsset(output, style, utf8(css)));
+    }
+    for (Path script : list(webapp, ".js")) {
+      String js = minifyJs(read(script));
+      urls.put("/" + script.getFileName(), writeAsset(output, script, utf8(js)));
+    }
+    for (Path page : list(webapp, ".html")) {
+      Files.write(output.resolve(page.getFileName()), utf8(rewriteUrls(read(page), urls)));
+    }
+    for (Map.Entry<String, String> url : urls.entrySet()) {
+      System.out.println(url.getKey() + " -> " + url.getValue());
+    }
+  }
+
+  /* Writes content as fingerprinted asset. Returns its url */
+  private static String writeAsset(Path output, Path source, byte[] content) throws IOException {
+    String name = source.getFileName().toString();
+    int extension = name.lastIndexOf('.');
+    String fingerprinted = name.substring(0, extension) + "." + hash(content)
+        + name.substring(extension);
+    Path asset = output.resolve(ASSETS_DIRECTORY).resolve(fingerprinted);
+    Files.write(asset, content);
+    return "/" + ASSETS_DIRECTORY + "/" + fingerprinted;
+  }
+
+  /* Replaces quoted or url(...) references to the original urls, with or without leading "/" */
+  static String rewriteUrls(String text, Map<String, String> urls) {
+    for (Map.Entry<String, String> url : urls.entrySet()) {
+      String absolute = url.getKey();
+      String relative = absolute.substring(1);
+      for (String original : new String[] {absolute, relative}) {
+        text = text.replace("\"" + original + "\"", "\"" + url.getValue() + "\"")
+            .replace("'" + original + "'", "'" + url.getValue() + "'")
+            .replace("(" + original + ")", "(" + url.getValue() + ")");
+      }
+    }
+    return text;
+  }
+
+  /**
+   * Removes comments and unneeded whitespace. Whitespace before ":" is kept,
+   * because it is meaningful in selectors, e.g. "a :hover".
+   */
+  static String minifyCss(String css) {
+    StringBuilder result = new StringBuilder(css.length());
+    int i = 0;
+    while (i < css.length()) {
+      char c = css.charAt(i);
+      if (c == '/' && i + 1 < css.length() && css.charAt(i + 1) == '*') {
+        int end = css.indexOf("*/", i + 2);
+        i = end < 0 ? css.length() : end + 2;
+      } else if (c == '"' || c == '\'') {
+        int end = skipString(css, i);
+        result.append(css, i, end);
+        i = end;
+      } else if (Character.isWhitespace(c)) {
+        while (i < css.length() && Character.isWhitespace(css.charAt(i))) {
+          i++;
+        }
+        char next = i < css.length() ? css.charAt(i) : '{';
+        if (result.length() > 0 && "{};,>:".indexOf(last(result)) < 0
+            && "{};,>".indexOf(next) < 0) {
+          result.append(' ');
+        }
+      } else {
+        if (c == '}' && result.length() > 0 && last(result) == ';') {
+          result.setLength(result.length() - 1);
+        }
+        result.append(c);
+        i++;
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * Removes comments, indentation and blank lines. Line breaks are kept, so statements
+   * which rely on automatic semicolon insertion stay valid.
+   */
+  static String minifyJs(String js) {
+    StringBuilder result = new StringBuilder(js.length());
+    int i = 0;
+    while (i < js.length()) {
+      char c = js.charAt(i);
+      char next = i + 1 < js.length() ? js.charAt(i + 1) : 0;
+      if (c == '/' && next == '/') {
+        while (i < js.length() && js.charAt(i) != '\n') {
+          i++;
+        }
+      } else if (c == '/' && next == '*') {
+        int end = js.indexOf("*/", i + 2);
+        i = end < 0 ? js.length() : end + 2;
+        // a block comment between two tokens still separates them
+        if (result.length() > 0 && !Character.isWhitespace(last(result))) {
+          result.append(' ');
+        }
+      } else if (c == '"' || c == '\'' || c == '`') {
+        int end = skipString(js, i);
+        result.append(js, i, end);
+        i = end;
+      } else if (c == '/' && startsRegex(result)) {
+        int end = skipRegex(js, i);
+        result.append(js, i, end);
+        i = end;
+      } else if (Character.isWhitespace(c)) {
+        boolean newLine = false;
+        while (i < js.length() && Character.isWhitespace(js.charAt(i))) {
+          newLine |= js.charAt(i) == '\n';
+          i++;
+        }
+        trimTrailingSpace(result);
+        if (result.length() == 0 || last(result) == '\n') {
+          continue;
+        }
+        if (newLine) {
+          result.append('\n');
+        } else if (i < js.length() && isWordChar(last(result)) && isWordChar(js.charAt(i))) {
+          result.append(' ');
+        } else if (i < js.length() && "+-".indexOf(last(result)) >= 0
+            && last(result) == js.charAt(i)) {
+          // "a + +b" must not become "a++b"
+          result.append(' ');
+        }
+      } else {
+        result.append(c);
+        i++;
+      }
+    }
+    trimTrailingSpace(result);
+    return result.toString();
+  }
+
+  /* A slash starts a regular expression, not a division, after an operator or at the start */
+  private static boolean startsRegex(StringBuilder result) {
+    int i = result.length() - 1;
+    while (i >= 0 && Character.isWhitespace(result.charAt(i))) {
+      i--;
+    }
+    return i < 0 || "(,=:[!&|?{};+-*%<>~^".indexOf(result.charAt(i)) >= 0;
+  }
+
+  /* Returns index after the string or template literal which starts at start */
+  private static int skipString(String text, int start) {
+    char quote = text.charAt(start);
+    int i = start + 1;
+    while (i < text.length() && text.charAt(i) != quote) {
+      i += text.charAt(i) == '\\' ? 2 : 1;
+    }
+    return Math.min(i + 1, text.length());
+  }
+
+  /* Returns index after the regular expression literal and its flags which starts at start */
+  private static int skipRegex(String text, int start) {
+    int i = start + 1;
+    boolean inClass = false;
+    while (i < text.length() && (inClass || text.charAt(i) != '/')) {
+      char c = text.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == '[') {
+        inClass = true;
+      } else if (c == ']') {
+        inClass = false;
+      }
+      i++;
+    }
+    i++;
+    while (i < text.length() && Character.isLetter(text.charAt(i))) {
+      i++;
+    }
+    return Math.min(i, text.length());
+  }
+
+  private static boolean isWordChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+  }
+
+  private static char last(StringBuilder text) {
+    return text.charAt(text.length() - 1);
+  }
+
+  private static void trimTrailingSpace(StringBuilder text) {
+    while (text.length() > 0 && last(text) == ' ') {
+      text.setLength(text.length() - 1);
+    }
+  }
+
+  private static String hash(byte[] content) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.substring(0, HASH_LENGTH);
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM has SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /* Files of the directory with the suffix, sorted by name. Empty if there is no directory */
+  private static List<Path> list(Path directory, String suffix) throws IOException {
+    if (!Files.isDirectory(directory)) {
+      return Collections.emptyList();
+    }
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(Files::isRegularFile)
+          .filter(file -> file.getFileName().toString().endsWith(suffix))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static String read(Path file) throws IOException {
+    return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+  }
+
+  private static byte[] utf8(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,84 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Serialization of one page of comments: Gson tree of CommentsSend against CommentsSendWriter */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommentsSendBenchmark {
+
+  // up to DataServlet MAX_COMMENTS_NUMBER
+  @Param({"10", "100", "1000"})
+  private int pageSize;
+
+  private final Gson gson = new Gson();
+  private ArrayList<Comment> comments;
+  private String nextCursor;
+  private String previousCursor;
+
+  @Setup
+  public void setUp() {
+    comments = new ArrayList<>();
+    for (long timestamp = pageSize; timestamp > 0; timestamp--) {
+      comments.add(SampleComments.create(timestamp));
+    }
+    nextCursor = CommentsCursor.next(1, 1).toWebSafeString();
+    previousCursor = CommentsCursor.previous(pageSize, pageSize).toWebSafeString();
+  }
+
+  @Benchmark
+  public long gsonToJson() {
+    SampleComments.CountingWriter out = new SampleComments.CountingWriter();
+    gson.toJson(new CommentsSend(comments, nextCursor, previousCursor), out);
+    return out.getCount();
+  }
+
+  @Benchmark
+  public long gsonToJsonString() {
+    return gson.toJson(new CommentsSend(comments, nextCursor, previousCursor)).length();
+  }
+
+  @Benchmark
+  public long commentsSendWriter() throws IOException {
+    SampleComments.CountingWriter out = new SampleComments.CountingWriter();
+    CommentsSendWriter writer = new CommentsSendWriter(gson, gson.newJsonWriter(out));
+    writer.beginComments();
+    for (Comment comment : comments) {
+      writer.writeComment(comment, comment.getTimestamp());
+    }
+    writer.endComments(true, true);
+    return out.getCount();
+  }
+}
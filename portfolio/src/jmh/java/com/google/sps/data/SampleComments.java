@@ -0,0 +1,62 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.Writer;
+
+/* Comments which look like real ones and a writer which only counts written chars, for benchmarks */
+public final class SampleComments {
+
+  private static final String TEXT =
+      "Great portfolio! I liked the photos from the hiking trip and the fun facts section.";
+
+  private SampleComments() {}
+
+  /* Every third comment has an image */
+  public static Comment create(long timestamp) {
+    String imageUrl = timestamp % 3 == 0 ? "/_ah/img/encoded_gs_file:comment-" + timestamp : null;
+    return new Comment(TEXT + " #" + timestamp, "owner" + (timestamp % 50), timestamp, imageUrl);
+  }
+
+  /* Writer which discards chars, so benchmarks measure serialization rather than I/O */
+  public static final class CountingWriter extends Writer {
+    private long count;
+
+    public long getCount() {
+      return count;
+    }
+
+    @Override
+    public void write(int c) {
+      count++;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+      count += length;
+    }
+
+    @Override
+    public void write(String str, int offset, int length) {
+      count += length;
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.ratelimit;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Allowed path of the post limiter: 10k users, each earning a token every 60ns,
+ * faster than threads take them. One hot user shows the cost of compare-and-set contention.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class UserRateLimiterBenchmark {
+  private static final int USERS_NUMBER = 10_000;
+
+  private final UserRateLimiter limiter = new UserRateLimiter("benchmark", 1e9, 1000);
+  private final String[] users = new String[USERS_NUMBER];
+
+  @Setup
+  public void setUp() {
+    for (int i = 0; i < USERS_NUMBER; i++) {
+      users[i] = "user" + i;
+    }
+  }
+
+  @Benchmark
+  public long manyUsers() {
+    return limiter.acquire(users[ThreadLocalRandom.current().nextInt(USERS_NUMBER)]);
+  }
+
+  @Benchmark
+  public long oneUser() {
+    return limiter.acquire(users[0]);
+  }
+}
@@ -0,0 +1,65 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.search;
+
+import com.google.sps.data.CommentsSearchSend;
+import com.google.sps.data.SampleComments;
+import com.google.sps.store.CommentStore;
+import com.google.sps.store.CommentStoreFactory;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Top 20 search results over 100k comments. Sample comments share their text, so common words
+ * match every comment, a number matches one comment, and an owner matches every 50th.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dportfolio.store=memory", "-Dportfolio.cache=local"})
+@State(Scope.Benchmark)
+public class CommentSearchBenchmark {
+  private static final int COMMENTS_NUMBER = 100_000;
+
+  @Param({"12345", "owner7 hiking", "hiking", "hik*", "owner*"})
+  private String query;
+
+  private CommentSearchIndex index;
+
+  @Setup
+  public void setUp() {
+    CommentStore store = CommentStoreFactory.getCommentStore();
+    for (long timestamp = 1; timestamp <= COMMENTS_NUMBER; timestamp++) {
+      store.add(SampleComments.create(timestamp));
+    }
+    index = CommentSearchIndex.getInstance();
+  }
+
+  @Benchmark
+  public CommentsSearchSend search() {
+    return index.search(query, 20);
+  }
+}
@@ -0,0 +1,148 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.sps.data.SampleComments;
+import com.google.sps.store.CommentStore;
+import com.google.sps.store.CommentStoreFactory;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DataServlet.doGet of the first page, with the in-memory comment store and local cache.
+ * Pages up to 50 comments are served from the page cache, bigger ones are read every time.
+ * Either way the page is written as one buffer to the output stream.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dportfolio.store=memory", "-Dportfolio.cache=local"})
+@State(Scope.Thread)
+public class DataServletBenchmark {
+  private static final int COMMENTS_NUMBER = 10_000;
+
+  // up to DataServlet MAX_COMMENTS_NUMBER
+  @Param({"10", "100", "1000"})
+  private int pageSize;
+
+  private final DataServlet servlet = new DataServlet();
+  private final SampleComments.CountingWriter out = new SampleComments.CountingWriter();
+  private final CountingOutputStream bytesOut = new CountingOutputStream();
+  private final Map<String, String> headers = new HashMap<>();
+  private HttpServletRequest request;
+  private HttpServletRequest revalidateRequest;
+  private HttpServletResponse response;
+
+  @Setup
+  public void setUp() throws IOException {
+    CommentStore store = CommentStoreFactory.getCommentStore();
+    for (long timestamp = 1; timestamp <= COMMENTS_NUMBER; timestamp++) {
+      store.add(SampleComments.create(timestamp));
+    }
+
+    request = request(null);
+    response = response(new PrintWriter(out), headers);
+    servlet.doGet(request, response);
+    revalidateRequest = request(headers.get("ETag"));
+  }
+
+  @Benchmark
+  public long doGet() throws IOException {
+    servlet.doGet(request, response);
+    return out.getCount() + bytesOut.count;
+  }
+
+  @Benchmark
+  public long doGetNotModified() throws IOException {
+    servlet.doGet(revalidateRequest, response);
+    return out.getCount() + bytesOut.count;
+  }
+
+  /* output stream of the response, counts written bytes */
+  private static final class CountingOutputStream extends ServletOutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      count += length;
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener) {}
+  }
+
+  private HttpServletRequest request(String ifNoneMatch) {
+    String maxComments = Integer.toString(pageSize);
+    return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getParameter":
+              return "maxcomments".equals(args[0]) ? maxComments : null;
+            case "getHeader":
+              return "If-None-Match".equals(args[0]) ? ifNoneMatch : null;
+            default:
+              return null;
+          }
+        });
+  }
+
+  /* response which writes body to writer or bytesOut and keeps headers, other calls are ignored */
+  private HttpServletResponse response(PrintWriter writer, Map<String, String> headers) {
+    return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] {HttpServletResponse.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getWriter":
+              return writer;
+            case "getOutputStream":
+              return bytesOut;
+            case "setHeader":
+              headers.put((String) args[0], (String) args[1]);
+              return null;
+            default:
+              return null;
+          }
+        });
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.store;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.apphosting.api.ApiProxy;
+import com.google.gson.Gson;
+import com.google.sps.data.Comment;
+import com.google.sps.data.CommentsCursor;
+import com.google.sps.data.CommentsSendWriter;
+import com.google.sps.data.SampleComments;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* Pagination of the comment feed in InMemoryCommentStore and mapping of datastore entities */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommentPageBenchmark {
+  private static final int COMMENTS_NUMBER = 10_000;
+
+  // up to DataServlet MAX_COMMENTS_NUMBER
+  @Param({"10", "100", "1000"})
+  private int pageSize;
+
+  private final Gson gson = new Gson();
+  private final InMemoryCommentStore store = new InMemoryCommentStore();
+  private CommentsCursor nextCursor;
+  private CommentsCursor previousCursor;
+  private List<Entity> entities;
+
+  @Setup
+  public void setUp() {
+    for (long timestamp = 1; timestamp <= COMMENTS_NUMBER; timestamp++) {
+      store.add(SampleComments.create(timestamp));
+    }
+    // cursors from the middle of the feed, so both directions have full pages
+    // comments get ids from 1 in the order they are added, so here the id is the timestamp
+    nextCursor = CommentsCursor.next(COMMENTS_NUMBER / 2, COMMENTS_NUMBER / 2);
+    previousCursor = CommentsCursor.previous(COMMENTS_NUMBER / 2, COMMENTS_NUMBER / 2);
+
+    // entity keys need an app id, which is normally given by the App Engine environment
+    Map<String, Object> attributes = new HashMap<>();
+    ApiProxy.setEnvironmentForCurrentThread((ApiProxy.Environment) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] {ApiProxy.Environment.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getAppId":
+              return "benchmark";
+            case "getAttributes":
+              return attributes;
+            default:
+              return null;
+          }
+        }));
+    entities = new ArrayList<>();
+    for (long timestamp = 1; timestamp <= pageSize; timestamp++) {
+      Comment comment = SampleComments.create(timestamp);
+      Entity entity = new Entity("Comment");
+      entity.setProperty("commentText", comment.getCommentText());
+      entity.setProperty("commentOwner", comment.getCommentOwner());
+      entity.setProperty("timestamp", comment.getTimestamp());
+      entity.setProperty("commentImageUrl", comment.getCommentImageUrl());
+      entities.add(entity);
+    }
+  }
+
+  @Benchmark
+  public long firstPage() throws IOException {
+    return writePage(null);
+  }
+
+  @Benchmark
+  public long nextPage() throws IOException {
+    return writePage(nextCursor);
+  }
+
+  @Benchmark
+  public long previousPage() throws IOException {
+    return writePage(previousCursor);
+  }
+
+  @Benchmark
+  public void entitiesToComments(Blackhole blackhole) {
+    for (Entity entity : entities) {
+      blackhole.consume(DatastoreCommentStore.toComment(entity));
+    }
+  }
+
+  private long writePage(CommentsCursor cursor) throws IOException {
+    SampleComments.CountingWriter out = new SampleComments.CountingWriter();
+    store.writePage(
+        null, cursor, pageSize, new CommentsSendWriter(gson, gson.newJsonWriter(out)));
+    return out.getCount();
+  }
+}
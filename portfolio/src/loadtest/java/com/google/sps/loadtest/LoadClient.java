@@ -0,0 +1,113 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Minimal blocking HTTP client. Bodies are read fully, so connections are kept alive.
+ * Accepts compressed responses as browsers do.
+ */
+final class LoadClient {
+  private final String baseUrl;
+  private final String acceptEncoding;
+
+  LoadClient(String baseUrl) {
+    this(baseUrl, "gzip, deflate");
+  }
+
+  LoadClient(String baseUrl, String acceptEncoding) {
+    this.baseUrl = baseUrl;
+    this.acceptEncoding = acceptEncoding;
+  }
+
+  /* Returns status code of GET request to path */
+  int get(String path) throws IOException {
+    HttpURLConnection connection = open(path);
+    return finish(connection);
+  }
+
+  /* Returns body of GET request to path, throws IOException if the status is not 200 */
+  String read(String path) throws IOException {
+    HttpURLConnection connection = open(path);
+    int status = connection.getResponseCode();
+    if (status != HttpURLConnection.HTTP_OK) {
+      finish(connection);
+      throw new IOException("GET " + path + " returned " + status);
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    try (InputStream in = decode(connection)) {
+      int length;
+      while ((length = in.read(buffer)) != -1) {
+        body.write(buffer, 0, length);
+      }
+    }
+    return new String(body.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /* Returns status code of POST request with url encoded form to path */
+  int postForm(String path, String form) throws IOException {
+    HttpURLConnection connection = open(path);
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+    byte[] body = form.getBytes(StandardCharsets.UTF_8);
+    connection.setFixedLengthStreamingMode(body.length);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(body);
+    }
+    return finish(connection);
+  }
+
+  private HttpURLConnection open(String path) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+    // redirects after posts are not part of the measured request
+    connection.setInstanceFollowRedirects(false);
+    connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+    return connection;
+  }
+
+  private static InputStream decode(HttpURLConnection connection) throws IOException {
+    String encoding = connection.getContentEncoding();
+    if ("gzip".equals(encoding)) {
+      return new GZIPInputStream(connection.getInputStream());
+    }
+    if ("deflate".equals(encoding)) {
+      return new InflaterInputStream(connection.getInputStream());
+    }
+    return connection.getInputStream();
+  }
+
+  private static int finish(HttpURLConnection connection) throws IOException {
+    int status = connection.getResponseCode();
+    InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+    if (body != null) {
+      byte[] buffer = new byte[8192];
+      try (InputStream in = body) {
+        while (in.read(buffer) != -1) {}
+      }
+    }
+    return status;
+  }
+}
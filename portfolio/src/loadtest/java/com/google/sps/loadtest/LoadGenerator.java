@@ -0,0 +1,195 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.loadtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Closed-loop load: every thread sends a request, waits for the response and sends the next one.
+ * Requests are picked at random by their weights in the mix.
+ *
+ * With a rate, each thread sends requests on a fixed schedule, so all threads together send
+ * rate requests per second. If a response is late, the next request is sent right away and
+ * its corrected latency counts from the time it should have been sent. This way a stall is
+ * seen by all requests which would have waited for it, not only by the one which was stuck
+ * (coordinated omission).
+ */
+final class LoadGenerator {
+  private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+  /* One kind of request of the mix. Returns HTTP status code */
+  interface Request {
+    int send(LoadClient client) throws IOException;
+  }
+
+  /* Latencies of one endpoint, in microseconds */
+  static final class EndpointStats {
+    private final Recorder latency = new Recorder(HIGHEST_LATENCY_MICROS, 3);
+    private final Recorder correctedLatency = new Recorder(HIGHEST_LATENCY_MICROS, 3);
+    private final Recorder errors = new Recorder(1);
+    private Histogram latencyHistogram;
+    private Histogram correctedLatencyHistogram;
+    private long errorsNumber;
+
+    private void record(long latencyNanos, long correctedLatencyNanos, boolean ok) {
+      latency.recordValue(Math.min(HIGHEST_LATENCY_MICROS, latencyNanos / 1000));
+      correctedLatency.recordValue(Math.min(HIGHEST_LATENCY_MICROS, correctedLatencyNanos / 1000));
+      if (!ok) {
+        errors.recordValue(1);
+      }
+    }
+
+    /* Drops everything recorded so far, e.g. during warmup */
+    private void reset() {
+      latency.reset();
+      correctedLatency.reset();
+      errors.reset();
+    }
+
+    private void finish() {
+      latencyHistogram = latency.getIntervalHistogram();
+      correctedLatencyHistogram = correctedLatency.getIntervalHistogram();
+      errorsNumber = errors.getIntervalHistogram().getTotalCount();
+    }
+
+    Histogram getLatency() {
+      return latencyHistogram;
+    }
+
+    Histogram getCorrectedLatency() {
+      return correctedLatencyHistogram;
+    }
+
+    long getErrors() {
+      return errorsNumber;
+    }
+  }
+
+  private final LoadClient client;
+  private final String[] names;
+  private final Request[] requests;
+  private final int[] cumulativeWeights;
+  private final EndpointStats[] endpointStats;
+
+  /* mix maps endpoint names to weights, requests maps them to requests */
+  LoadGenerator(LoadClient client, Map<String, Integer> mix, Map<String, Request> requests) {
+    this.client = client;
+    List<String> active = new ArrayList<>();
+    for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+      if (!requests.containsKey(entry.getKey())) {
+        throw new IllegalArgumentException("Unknown endpoint in the mix: " + entry.getKey());
+      }
+      if (entry.getValue() > 0) {
+        active.add(entry.getKey());
+      }
+    }
+    if (active.isEmpty()) {
+      throw new IllegalArgumentException("The mix has no endpoints");
+    }
+    names = active.toArray(new String[0]);
+    this.requests = new Request[names.length];
+    cumulativeWeights = new int[names.length];
+    endpointStats = new EndpointStats[names.length];
+    int total = 0;
+    for (int i = 0; i < names.length; i++) {
+      this.requests[i] = requests.get(names[i]);
+      total += mix.get(names[i]);
+      cumulativeWeights[i] = total;
+      endpointStats[i] = new EndpointStats();
+    }
+  }
+
+  /**
+   * Runs threads for warmup and then measures for duration. Rate is requests per second
+   * of all threads together, 0 to send requests as fast as responses come.
+   * Returns stats of the measured part by endpoint.
+   */
+  Map<String, EndpointStats> run(int threads, double rate, long warmupMillis, long durationMillis)
+      throws InterruptedException {
+    long intervalNanos = rate > 0 ? (long) (threads * 1e9 / rate) : 0;
+    long start = System.nanoTime();
+    long measureStart = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+    long end = measureStart + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+    List<Thread> workers = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      // schedules of the threads are spread over the interval, so requests don't come in bursts
+      long firstSend = start + intervalNanos * i / threads;
+      Thread worker = new Thread(() -> work(firstSend, intervalNanos, end), "load-" + i);
+      workers.add(worker);
+      worker.start();
+    }
+
+    Thread.sleep(warmupMillis);
+    for (EndpointStats stats : endpointStats) {
+      stats.reset();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    Map<String, EndpointStats> statsByEndpoint = new LinkedHashMap<>();
+    for (int i = 0; i < names.length; i++) {
+      endpointStats[i].finish();
+      statsByEndpoint.put(names[i], endpointStats[i]);
+    }
+    return statsByEndpoint;
+  }
+
+  private void work(long firstSend, long intervalNanos, long end) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long intendedSend = firstSend;
+    while (true) {
+      long now = System.nanoTime();
+      if (intervalNanos == 0) {
+        intendedSend = now;
+      } else if (intendedSend > now) {
+        LockSupport.parkNanos(intendedSend - now);
+        now = System.nanoTime();
+      }
+      if (now >= end) {
+        return;
+      }
+
+      int index = pick(random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]));
+      boolean ok;
+      try {
+        ok = requests[index].send(client) < 400;
+      } catch (IOException e) {
+        ok = false;
+      }
+      long finish = System.nanoTime();
+      endpointStats[index].record(finish - now, finish - intendedSend, ok);
+      intendedSend += intervalNanos;
+    }
+  }
+
+  /* index of the request which owns the weight point */
+  private int pick(int point) {
+    int index = 0;
+    while (cumulativeWeights[index] <= point) {
+      index++;
+    }
+    return index;
+  }
+}
@@ -0,0 +1,143 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.loadtest;
+
+import com.google.sps.data.Comment;
+import com.google.sps.store.CommentStore;
+import com.google.sps.store.CommentStoreFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Runs portfolio servlets in LocalPortfolioServer and drives them with LoadGenerator.
+ * Prints throughput and latency percentiles by endpoint.
+ *
+ * Options are system properties:
+ *   load.threads   - concurrent clients, default 16
+ *   load.rate      - requests per second of all clients, default 0 - as fast as possible.
+ *                    With a rate the report has latencies corrected for coordinated omission
+ *   load.warmup    - seconds before the measurement, default 5
+ *   load.duration  - measured seconds, default 30
+ *   load.seed      - comments stored before the run, default 1000
+ *   load.pageSize  - maxcomments of /comments requests, default 10
+ *   load.mix       - weights of endpoints (comments, default, owner, post, auth, upload-url,
+ *                    search, delete), default
+ *                    "comments=70,post=15,auth=10,upload-url=4,delete=1"
+ *   load.serverThreads - max Jetty threads, default 200
+ * and portfolio.* properties of the app itself, e.g. portfolio.store.
+ */
+public final class LoadTest {
+
+  private LoadTest() {}
+
+  public static void main(String[] args) throws Exception {
+    int threads = Integer.getInteger("load.threads", 16);
+    double rate = Double.parseDouble(System.getProperty("load.rate", "0"));
+    long warmupMillis = Long.getLong("load.warmup", 5) * 1000;
+    long durationMillis = Long.getLong("load.duration", 30) * 1000;
+    int seed = Integer.getInteger("load.seed", 1000);
+    int pageSize = Integer.getInteger("load.pageSize", 10);
+    Map<String, Integer> mix = parseMix(
+        System.getProperty("load.mix", "comments=70,post=15,auth=10,upload-url=4,delete=1"));
+    LocalPortfolioServer server =
+        new LocalPortfolioServer(0, Integer.getInteger("load.serverThreads", 200));
+    String baseUrl = server.start();
+    CommentStore store = CommentStoreFactory.getCommentStore();
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < seed; i++) {
+      store.add(new Comment("Seed comment " + i, "seed", now - seed + i, null));
+    }
+
+    Map<String, LoadGenerator.Request> requests = new LinkedHashMap<>();
+    requests.put("comments", client -> client.get("/comments?maxcomments=" + pageSize));
+    // the page opened from a shared link, with default parameters
+    requests.put("default", client -> client.get("/comments"));
+    requests.put("owner",
+        client -> client.get("/comments?maxcomments=" + pageSize + "&owner=load"));
+    requests.put("post", client -> client.postForm("/comments",
+        "comment-text=Load+test+comment+" + ThreadLocalRandom.current().nextInt()
+            + "&comment-owner=load"));
+    requests.put("auth", client -> client.get("/auth"));
+    requests.put("upload-url",
+        client -> client.get("/blobstore-upload-url?forwardurl=%2Fcomments"));
+    requests.put("search", client -> client.get("/comments/search?q=seed+comm*"));
+    requests.put("delete", client -> client.postForm("/delete-data", ""));
+
+    System.out.printf("%s: %d threads, %s, %ds warmup, %ds measured, mix %s%n", baseUrl, threads,
+        rate > 0 ? rate + " req/s" : "closed loop", warmupMillis / 1000, durationMillis / 1000, mix);
+    LoadGenerator generator = new LoadGenerator(new LoadClient(baseUrl), mix, requests);
+    Map<String, LoadGenerator.EndpointStats> stats =
+        generator.run(threads, rate, warmupMillis, durationMillis);
+
+    System.out.println();
+    System.out.println("Latency in ms, from sending the request");
+    printReport(stats, false, durationMillis);
+    if (rate > 0) {
+      System.out.println();
+      System.out.println("Latency in ms, from the intended send time (coordinated omission corrected)");
+      printReport(stats, true, durationMillis);
+    }
+
+    server.stop();
+    // background threads of local services don't stop by themselves
+    System.exit(0);
+  }
+
+  private static void printReport(Map<String, LoadGenerator.EndpointStats> stats,
+      boolean corrected, long durationMillis) {
+    System.out.printf("%-12s %8s %7s %9s %9s %9s %9s %9s %9s%n",
+        "endpoint", "count", "errors", "req/s", "p50", "p95", "p99", "p999", "max");
+    Histogram total = null;
+    long totalErrors = 0;
+    for (Map.Entry<String, LoadGenerator.EndpointStats> entry : stats.entrySet()) {
+      LoadGenerator.EndpointStats endpoint = entry.getValue();
+      Histogram latency = corrected ? endpoint.getCorrectedLatency() : endpoint.getLatency();
+      printRow(entry.getKey(), latency, endpoint.getErrors(), durationMillis);
+      if (total == null) {
+        total = latency.copy();
+      } else {
+        total.add(latency);
+      }
+      totalErrors += endpoint.getErrors();
+    }
+    printRow("all", total, totalErrors, durationMillis);
+  }
+
+  private static void printRow(String name, Histogram latency, long errors, long durationMillis) {
+    System.out.printf("%-12s %8d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+        name, latency.getTotalCount(), errors, latency.getTotalCount() * 1000.0 / durationMillis,
+        millis(latency, 50), millis(latency, 95), millis(latency, 99), millis(latency, 99.9),
+        latency.getMaxValue() / 1000.0);
+  }
+
+  private static double millis(Histogram latency, double percentile) {
+    return latency.getValueAtPercentile(percentile) / 1000.0;
+  }
+
+  /* parses "name=weight,name=weight" */
+  private static Map<String, Integer> parseMix(String mix) {
+    Map<String, Integer> weights = new LinkedHashMap<>();
+    for (String item : mix.split(",")) {
+      String[] nameAndWeight = item.trim().split("=");
+      if (nameAndWeight.length != 2) {
+        throw new IllegalArgumentException("Invalid load.mix item: " + item);
+      }
+      weights.put(nameAndWeight[0].trim(), Integer.parseInt(nameAndWeight[1].trim()));
+    }
+    return weights;
+  }
+}
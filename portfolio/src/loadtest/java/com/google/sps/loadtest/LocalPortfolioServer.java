@@ -0,0 +1,275 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.loadtest;
+
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueueCallback;
+import com.google.appengine.api.urlfetch.URLFetchServicePb;
+import com.google.appengine.tools.development.testing.LocalBlobstoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.sps.images.ImageVariantJobs;
+import com.google.sps.servlets.AuthServlet;
+import com.google.sps.servlets.BlobstoreUploadServlet;
+import com.google.sps.servlets.BootstrapServlet;
+import com.google.sps.servlets.CommentDeleteServlet;
+import com.google.sps.servlets.CommentDeleteWorkerServlet;
+import com.google.sps.servlets.CommentSearchServlet;
+import com.google.sps.servlets.CommentStreamServlet;
+import com.google.sps.servlets.DataServlet;
+import com.google.sps.servlets.ImageVariantServlet;
+import com.google.sps.servlets.ImageVariantWorkerServlet;
+import com.google.sps.servlets.MetricsServlet;
+import com.google.sps.store.CommentDeleteJobs;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Portfolio servlets in embedded Jetty, with local stand-ins of datastore, memcache,
+ * blobstore, users and task queue. Every request runs as a logged in user.
+ * Tasks are posted back to the server, as App Engine does.
+ */
+final class LocalPortfolioServer {
+  // request attributes which blobstore sets on the upload callback request
+  private static final String UPLOADED_BLOB_KEYS = "com.google.appengine.api.blobstore.upload.blobkeys";
+  private static final String UPLOADED_BLOB_INFOS = "com.google.appengine.api.blobstore.upload.blobinfos";
+  // environment attributes ThreadManager reads thread factories from
+  private static final String REQUEST_THREAD_FACTORY_ATTRIBUTE =
+      "com.google.appengine.api.ThreadManager.REQUEST_THREAD_FACTORY";
+  private static final String BACKGROUND_THREAD_FACTORY_ATTRIBUTE =
+      "com.google.appengine.api.ThreadManager.BACKGROUND_THREAD_FACTORY";
+  // filters are mapped in web.xml, which defines their order
+  private static final File WEB_XML = new File("src/main/webapp/WEB-INF/web.xml");
+
+  // the server tasks are posted to, there is one server per JVM
+  private static volatile String taskBaseUrl;
+
+  /* Posts tasks of the local task queue to the server, with the header the queue sets */
+  public static final class TaskCallback implements LocalTaskQueueCallback {
+    @Override
+    public void initialize(Map<String, String> properties) {}
+
+    @Override
+    public int execute(URLFetchServicePb.URLFetchRequest task) {
+      try {
+        // the queue gives full urls of the dev server, only the path is used
+        URL url = new URL(task.getUrl());
+        String path = url.getFile().isEmpty() ? task.getUrl() : url.getFile();
+        HttpURLConnection connection =
+            (HttpURLConnection) new URL(taskBaseUrl + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        for (URLFetchServicePb.URLFetchRequest.Header header : task.getHeaderList()) {
+          connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        connection.setRequestProperty("X-AppEngine-QueueName", "default");
+        try (OutputStream out = connection.getOutputStream()) {
+          out.write(task.getPayload().toByteArray());
+        }
+        return connection.getResponseCode();
+      } catch (IOException e) {
+        return HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+      }
+    }
+  }
+
+  /* gives every request its own App Engine environment of the local services */
+  private static final class LocalServices extends LocalServiceTestHelper {
+    LocalServices() {
+      super(new LocalDatastoreServiceTestConfig(),
+          new LocalMemcacheServiceTestConfig(),
+          new LocalBlobstoreServiceTestConfig(),
+          new LocalUserServiceTestConfig(),
+          new LocalTaskQueueTestConfig()
+              .setDisableAutoTaskExecution(false)
+              .setCallbackClass(TaskCallback.class));
+      setEnvIsLoggedIn(true);
+      setEnvEmail("load@example.com");
+      setEnvAuthDomain("example.com");
+    }
+
+    /* Threads of the request get its environment, background threads get their own.
+     * The dev server factories, which do it too, don't start threads on newer JDKs.
+     */
+    ApiProxy.Environment newRequestEnvironment() {
+      ApiProxy.Environment environment = newEnvironment();
+      environment.getAttributes().put(
+          REQUEST_THREAD_FACTORY_ATTRIBUTE, threadFactory(() -> environment));
+      environment.getAttributes().put(
+          BACKGROUND_THREAD_FACTORY_ATTRIBUTE, threadFactory(this::newEnvironment));
+      return environment;
+    }
+
+    private static ThreadFactory threadFactory(Supplier<ApiProxy.Environment> environment) {
+      return runnable -> new Thread(() -> {
+        ApiProxy.setEnvironmentForCurrentThread(environment.get());
+        try {
+          runnable.run();
+        } finally {
+          ApiProxy.clearEnvironmentForCurrentThread();
+        }
+      });
+    }
+  }
+
+  /* Sets App Engine environment for the request thread. Posts to /comments come as if
+   * blobstore forwarded them after an upload without a file.
+   */
+  private final class AppEngineFilter implements Filter {
+    @Override
+    public void init(FilterConfig config) {}
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+        throws IOException, ServletException {
+      HttpServletRequest httpRequest = (HttpServletRequest) request;
+      if ("POST".equals(httpRequest.getMethod())
+          && "/comments".equals(httpRequest.getRequestURI())) {
+        request.setAttribute(UPLOADED_BLOB_KEYS, Collections.emptyMap());
+        request.setAttribute(UPLOADED_BLOB_INFOS, Collections.emptyMap());
+      }
+      ApiProxy.setEnvironmentForCurrentThread(services.newRequestEnvironment());
+      try {
+        chain.doFilter(request, response);
+      } finally {
+        ApiProxy.clearEnvironmentForCurrentThread();
+      }
+    }
+
+    @Override
+    public void destroy() {}
+  }
+
+  private final LocalServices services = new LocalServices();
+  private final Server server;
+
+  /* The services are set up for the calling thread too, so it can prepare data */
+  LocalPortfolioServer(int port, int maxThreads) {
+    // all requests come from one user, so posts are only limited if the limit is set
+    if (System.getProperty("portfolio.ratelimit.postsPerMinute") == null) {
+      System.setProperty("portfolio.ratelimit.postsPerMinute", "0");
+    }
+    services.setUp();
+    server = new Server(new QueuedThreadPool(maxThreads));
+    ServerConnector connector = new ServerConnector(server);
+    connector.setPort(port);
+    server.addConnector(connector);
+
+    ServletContextHandler context = new ServletContextHandler();
+    context.setContextPath("/");
+    FilterHolder filter = new FilterHolder(new AppEngineFilter());
+    filter.setAsyncSupported(true);
+    context.addFilter(filter, "/*", EnumSet.of(DispatcherType.REQUEST));
+    addWebXmlFilters(context);
+    context.addServlet(DataServlet.class, "/comments");
+    context.addServlet(AuthServlet.class, "/auth");
+    context.addServlet(BootstrapServlet.class, "/bootstrap");
+    context.addServlet(BlobstoreUploadServlet.class, "/blobstore-upload-url");
+    context.addServlet(CommentDeleteServlet.class, "/delete-data");
+    context.addServlet(CommentDeleteWorkerServlet.class, CommentDeleteJobs.WORKER_URL);
+    context.addServlet(MetricsServlet.class, "/metrics");
+    context.addServlet(ImageVariantWorkerServlet.class, ImageVariantJobs.WORKER_URL);
+    context.addServlet(ImageVariantServlet.class, ImageVariantJobs.VARIANT_URL);
+    // the search index is built by the first request, after the test data is stored
+    context.addServlet(CommentSearchServlet.class, "/comments/search");
+    ServletHolder stream = new ServletHolder(CommentStreamServlet.class);
+    stream.setAsyncSupported(true);
+    context.addServlet(stream, "/comments/stream");
+    server.setHandler(context);
+  }
+
+  /* Maps the filters of web.xml in the order of its filter-mapping elements, as App Engine does.
+   * The tools run from the project directory, so web.xml is read from the sources.
+   */
+  private static void addWebXmlFilters(ServletContextHandler context) {
+    Document webXml;
+    try {
+      webXml = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(WEB_XML);
+    } catch (ParserConfigurationException | SAXException | IOException e) {
+      throw new IllegalStateException("Can't read " + WEB_XML, e);
+    }
+    Map<String, FilterHolder> holders = new HashMap<>();
+    NodeList filters = webXml.getElementsByTagName("filter");
+    for (int i = 0; i < filters.getLength(); i++) {
+      Element filter = (Element) filters.item(i);
+      FilterHolder holder = new FilterHolder();
+      holder.setClassName(childText(filter, "filter-class"));
+      holder.setAsyncSupported(Boolean.parseBoolean(childText(filter, "async-supported")));
+      holders.put(childText(filter, "filter-name"), holder);
+    }
+    NodeList mappings = webXml.getElementsByTagName("filter-mapping");
+    for (int i = 0; i < mappings.getLength(); i++) {
+      Element mapping = (Element) mappings.item(i);
+      FilterHolder holder = holders.get(childText(mapping, "filter-name"));
+      NodeList paths = mapping.getElementsByTagName("url-pattern");
+      for (int j = 0; j < paths.getLength(); j++) {
+        context.addFilter(holder, paths.item(j).getTextContent().trim(),
+            EnumSet.of(DispatcherType.REQUEST));
+      }
+    }
+  }
+
+  /* text of the first child element with given name, null if there is none */
+  private static String childText(Element element, String name) {
+    NodeList children = element.getElementsByTagName(name);
+    return children.getLength() == 0 ? null : children.item(0).getTextContent().trim();
+  }
+
+  /* Starts the server and returns its base url */
+  String start() throws Exception {
+    server.start();
+    int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    taskBaseUrl = "http://localhost:" + port;
+    return taskBaseUrl;
+  }
+
+  void stop() throws Exception {
+    server.stop();
+    services.tearDown();
+  }
+}
@@ -0,0 +1,125 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.loadtest;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.sps.data.Comment;
+import com.google.sps.data.CommentsCursor;
+import com.google.sps.data.CommentsSendWriter;
+import com.google.sps.store.CommentStore;
+import com.google.sps.store.CommentStoreFactory;
+import com.google.sps.store.DatastoreUsage;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Datastore reads of comment pages, read right from the store of "portfolio.store" (default
+ * datastore) with the local datastore, without the page cache. Prints datastore calls
+ * and entities of the first, a next and a previous page, as DataServlet sends them in
+ * Server-Timing. Then walks all pages in both directions and checks that every comment
+ * is seen once, though comments are stored in groups with equal timestamps.
+ * Exits with status 1 if any comment is skipped or repeated.
+ *
+ * Options are system properties:
+ *   reads.comments - comments stored before the check, default 1000
+ *   reads.sameTime - comments stored in every millisecond, default 3
+ *   reads.pageSize - maxcomments of the pages, default 10
+ */
+public final class PageReadsCheck {
+  private static final Gson gson = new Gson();
+
+  private PageReadsCheck() {}
+
+  public static void main(String[] args) throws Exception {
+    int commentsNumber = Integer.getInteger("reads.comments", 1000);
+    int sameTime = Integer.getInteger("reads.sameTime", 3);
+    int pageSize = Integer.getInteger("reads.pageSize", 10);
+
+    // only the local services of the server are used
+    LocalPortfolioServer server = new LocalPortfolioServer(0, 1);
+    CommentStore store = CommentStoreFactory.getCommentStore();
+    long start = System.currentTimeMillis() - commentsNumber;
+    for (int i = 0; i < commentsNumber; i++) {
+      store.add(new Comment("Comment " + i, "reads", start + i / sameTime, null));
+    }
+
+    System.out.printf("%d comments, %d in every millisecond, %d comments a page%n",
+        commentsNumber, sameTime, pageSize);
+    JsonObject first = readPage(store, null, pageSize, "first page");
+    JsonObject second = readPage(store, cursor(first, "nextCursor"), pageSize, "next page");
+    readPage(store, cursor(second, "previousCursor"), pageSize, "previous page");
+
+    int failures = 0;
+    for (String direction : new String[] {"nextCursor", "previousCursor"}) {
+      Set<String> seen = new HashSet<>();
+      int repeated = 0;
+      JsonObject page = first;
+      if ("previousCursor".equals(direction)) {
+        // the walk back starts at the last page
+        while (page.has("nextCursor")) {
+          page = writePage(store, cursor(page, "nextCursor"), pageSize);
+        }
+      }
+      while (true) {
+        for (JsonElement comment : page.getAsJsonArray("comments")) {
+          if (!seen.add(comment.getAsJsonObject().get("commentText").getAsString())) {
+            repeated++;
+          }
+        }
+        if (!page.has(direction)) {
+          break;
+        }
+        page = writePage(store, cursor(page, direction), pageSize);
+      }
+      boolean passed = seen.size() == commentsNumber && repeated == 0;
+      System.out.printf("walk by %s: %d of %d comments seen, %d repeated%s%n", direction,
+          seen.size(), commentsNumber, repeated, passed ? "" : " - FAILED");
+      failures += passed ? 0 : 1;
+    }
+
+    server.stop();
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  /* writes the page while datastore calls are recorded, prints them */
+  private static JsonObject readPage(CommentStore store, CommentsCursor cursor, int pageSize,
+      String name) throws IOException {
+    DatastoreUsage usage = DatastoreUsage.start();
+    JsonObject page;
+    try {
+      page = writePage(store, cursor, pageSize);
+    } finally {
+      usage.stop();
+    }
+    System.out.printf("%-14s %s%n", name, usage.toServerTiming());
+    return page;
+  }
+
+  private static JsonObject writePage(CommentStore store, CommentsCursor cursor, int pageSize)
+      throws IOException {
+    StringWriter json = new StringWriter();
+    store.writePage(null, cursor, pageSize, new CommentsSendWriter(gson, gson.newJsonWriter(json)));
+    return JsonParser.parseString(json.toString()).getAsJsonObject();
+  }
+
+  private static CommentsCursor cursor(JsonObject page, String name) {
+    return CommentsCursor.fromWebSafeString(page.get(name).getAsString());
+  }
+}
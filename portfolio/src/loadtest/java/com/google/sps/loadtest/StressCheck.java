@@ -0,0 +1,174 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.loadtest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency stress check of the servlets in LocalPortfolioServer, which shares one instance
+ * of every servlet between all request threads, as App Engine does with threadsafe true.
+ *
+ * Writers post comments while readers read pages, auth and upload urls. Every response must be
+ * valid, pages must be sorted from newest to oldest without duplicates, and after the writers
+ * are done the first page must contain every posted comment exactly once.
+ * Exits with status 1 if any check fails.
+ *
+ * Options are system properties:
+ *   stress.writers - concurrent writers, default 16
+ *   stress.posts   - comments posted by every writer, default 50
+ *   stress.readers - concurrent readers, default 16
+ */
+public final class StressCheck {
+  // all posted comments have to fit into one page of DataServlet
+  private static final int MAX_COMMENTS_NUMBER = 1000;
+  private static final int[] PAGE_SIZES = {1, 10, 50, 100, 1000};
+  private static final String[] ACCEPT_ENCODINGS = {"gzip, deflate", "deflate", "identity"};
+
+  private static final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+  private static final AtomicLong checkedResponses = new AtomicLong();
+
+  private StressCheck() {}
+
+  public static void main(String[] args) throws Exception {
+    int writers = Integer.getInteger("stress.writers", 16);
+    int posts = Integer.getInteger("stress.posts", 50);
+    int readers = Integer.getInteger("stress.readers", 16);
+    if (writers * posts > MAX_COMMENTS_NUMBER) {
+      throw new IllegalArgumentException("At most " + MAX_COMMENTS_NUMBER + " comments are posted");
+    }
+
+    LocalPortfolioServer server = new LocalPortfolioServer(0, writers + readers + 50);
+    String baseUrl = server.start();
+    LoadClient client = new LoadClient(baseUrl);
+    AtomicBoolean writing = new AtomicBoolean(true);
+
+    List<Thread> writerThreads = new ArrayList<>();
+    for (int w = 0; w < writers; w++) {
+      int writer = w;
+      writerThreads.add(start("writer-" + w, () -> {
+        for (int i = 0; i < posts; i++) {
+          int status = client.postForm("/comments",
+              "comment-text=stress-" + writer + "-" + i + "&comment-owner=writer-" + writer);
+          if (status != 302) {
+            fail("POST /comments returned " + status);
+          }
+        }
+      }));
+    }
+    List<Thread> readerThreads = new ArrayList<>();
+    for (int r = 0; r < readers; r++) {
+      // readers accept different encodings, so every kind of response is checked
+      LoadClient reader = new LoadClient(baseUrl, ACCEPT_ENCODINGS[r % ACCEPT_ENCODINGS.length]);
+      readerThreads.add(start("reader-" + r, () -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (writing.get()) {
+          checkPage(reader.read(
+              "/comments?maxcomments=" + PAGE_SIZES[random.nextInt(PAGE_SIZES.length)]));
+          JsonObject auth = JsonParser.parseString(reader.read("/auth")).getAsJsonObject();
+          if (!auth.has("url") || !auth.get("isLoggedIn").getAsBoolean()) {
+            fail("Invalid /auth response " + auth);
+          }
+          if (reader.read("/blobstore-upload-url?forwardurl=%2Fcomments").trim().isEmpty()) {
+            fail("Empty upload url");
+          }
+          checkedResponses.addAndGet(2);
+        }
+      }));
+    }
+
+    for (Thread thread : writerThreads) {
+      thread.join();
+    }
+    writing.set(false);
+    for (Thread thread : readerThreads) {
+      thread.join();
+    }
+
+    // every post is visible once it has returned
+    Set<String> expected = new HashSet<>();
+    for (int w = 0; w < writers; w++) {
+      for (int i = 0; i < posts; i++) {
+        expected.add("stress-" + w + "-" + i);
+      }
+    }
+    Set<String> seen = checkPage(client.read("/comments?maxcomments=" + MAX_COMMENTS_NUMBER));
+    if (!seen.equals(expected)) {
+      Set<String> missing = new HashSet<>(expected);
+      missing.removeAll(seen);
+      fail(missing.size() + " posted comments are missing, " + seen.size() + " comments are shown");
+    }
+
+    server.stop();
+    System.out.printf("%d comments posted, %d responses checked, %d failures%n",
+        writers * posts, checkedResponses.get(), failures.size());
+    for (String failure : failures) {
+      System.out.println("FAILED: " + failure);
+    }
+    System.exit(failures.isEmpty() ? 0 : 1);
+  }
+
+  /* Checks that comments of the page go from newest to oldest without duplicates,
+   * returns their texts.
+   */
+  private static Set<String> checkPage(String json) {
+    Set<String> texts = new HashSet<>();
+    JsonArray comments = JsonParser.parseString(json).getAsJsonObject().getAsJsonArray("comments");
+    long previousTimestamp = Long.MAX_VALUE;
+    for (JsonElement element : comments) {
+      JsonObject comment = element.getAsJsonObject();
+      long timestamp = comment.get("timestamp").getAsLong();
+      if (timestamp > previousTimestamp) {
+        fail("Comments are not sorted from newest to oldest: " + json);
+      }
+      previousTimestamp = timestamp;
+      if (!texts.add(comment.get("commentText").getAsString())) {
+        fail("Duplicate comment " + comment);
+      }
+    }
+    checkedResponses.incrementAndGet();
+    return texts;
+  }
+
+  private interface Check {
+    void run() throws Exception;
+  }
+
+  private static Thread start(String name, Check check) {
+    Thread thread = new Thread(() -> {
+      try {
+        check.run();
+      } catch (Exception e) {
+        fail(Thread.currentThread().getName() + ": " + e);
+      }
+    }, name);
+    thread.start();
+    return thread;
+  }
+
+  private static void fail(String failure) {
+    failures.add(failure);
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.cache;
+
+import com.google.sps.metrics.Metrics;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Read-through cache of json pages returned by DataServlet.doGet.
+ * Pages are looked up in a small in-process LRU map first, then in the shared cache,
+ * and only then loaded from datastore.
+ * Keys must contain CommentsVersion, so the cache never has to be cleared.
+ */
+public final class CommentPageCache {
+
+  private static final int LOCAL_CAPACITY = 256;
+  private static final int SHARED_EXPIRATION_SECONDS = 600;
+  // memcache values are limited to 1MB, and big pages are not worth keeping in instance memory
+  private static final int MAX_PAGE_LENGTH = 100_000;
+
+  private final SharedCache sharedCache;
+  private final Map<String, String> localCache =
+      new LinkedHashMap<String, String>(LOCAL_CAPACITY, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > LOCAL_CAPACITY;
+        }
+      };
+
+  private final LongAdder localHits =
+      Metrics.counter("comments_page_cache_hits_total{tier=\"local\"}");
+  private final LongAdder sharedHits =
+      Metrics.counter("comments_page_cache_hits_total{tier=\"shared\"}");
+  private final LongAdder misses = Metrics.counter("comments_page_cache_misses_total");
+  private final LongAdder loadNanos = Metrics.counter("comments_page_cache_load_nanos_total");
+
+  public CommentPageCache(SharedCache sharedCache) {
+    this.sharedCache = sharedCache;
+    Metrics.gauge("comments_page_cache_hit_ratio", this::hitRatio);
+    // every hit is assumed to save as much time as an average miss takes to load the page
+    Metrics.gauge("comments_page_cache_saved_seconds_total", this::savedSeconds);
+  }
+
+  /* Returns the page with given key, calls loader to get it if the page is not cached */
+  public String get(String key, Supplier<String> loader) {
+    String page;
+    synchronized (localCache) {
+      page = localCache.get(key);
+    }
+    if (page != null) {
+      localHits.increment();
+      return page;
+    }
+
+    page = (String) sharedCache.get(key);
+    if (page != null) {
+      sharedHits.increment();
+      putLocal(key, page);
+      return page;
+    }
+
+    long start = System.nanoTime();
+    page = loader.get();
+    loadNanos.add(System.nanoTime() - start);
+    misses.increment();
+
+    if (page.length() <= MAX_PAGE_LENGTH) {
+      sharedCache.put(key, page, SHARED_EXPIRATION_SECONDS);
+      putLocal(key, page);
+    }
+    return page;
+  }
+
+  private void putLocal(String key, String page) {
+    synchronized (localCache) {
+      localCache.put(key, page);
+    }
+  }
+
+  private double hitRatio() {
+    long hits = localHits.sum() + sharedHits.sum();
+    long total = hits + misses.sum();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  private double savedSeconds() {
+    long missCount = misses.sum();
+    if (missCount == 0) {
+      return 0;
+    }
+    double averageLoadSeconds = loadNanos.sum() / 1e9 / missCount;
+    return (localHits.sum() + sharedHits.sum()) * averageLoadSeconds;
+  }
+}
@@ -0,0 +1,39 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.cache;
+
+/**
+ * Global version of the comments, kept in the shared cache.
+ * It changes every time comments are added or deleted, so anything cached under the old version
+ * is never read again and simply expires.
+ * If the version is evicted from the cache, it starts again from the current time in millis,
+ * which is greater than any version given out before unless there were more bumps than millis.
+ */
+public final class CommentsVersion {
+
+  private static final String KEY = "comments-version";
+
+  private CommentsVersion() {}
+
+  /* Returns current version or null if the shared cache is unavailable */
+  public static Long current() {
+    return SharedCacheFactory.getSharedCache().increment(KEY, 0, System.currentTimeMillis());
+  }
+
+  /* Is called after every change of the comments */
+  public static void bump() {
+    SharedCacheFactory.getSharedCache().increment(KEY, 1, System.currentTimeMillis());
+  }
+}
@@ -0,0 +1,69 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-process stand-in for memcache, used for tests and local runs without App Engine services.
+ * It is shared only by the code of one instance.
+ */
+final class LocalSharedCache implements SharedCache {
+
+  /* value with the time it expires at */
+  private static final class Item {
+    private final Object value;
+    private final long expiresAt;
+
+    private Item(Object value, long expiresAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+
+    private boolean isExpired() {
+      return System.currentTimeMillis() >= expiresAt;
+    }
+  }
+
+  private final ConcurrentMap<String, Item> items = new ConcurrentHashMap<>();
+
+  @Override
+  public Object get(String key) {
+    Item item = items.get(key);
+    if (item == null) {
+      return null;
+    }
+    if (item.isExpired()) {
+      items.remove(key, item);
+      return null;
+    }
+    return item.value;
+  }
+
+  @Override
+  public void put(String key, Object value, int expirationSeconds) {
+    items.put(key, new Item(value, System.currentTimeMillis() + expirationSeconds * 1000L));
+  }
+
+  @Override
+  public Long increment(String key, long delta, long initialValue) {
+    Item item = items.compute(key, (k, old) -> {
+      long value = old == null || old.isExpired() ? initialValue : (Long) old.value;
+      return new Item(value + delta, Long.MAX_VALUE);
+    });
+    return (Long) item.value;
+  }
+}
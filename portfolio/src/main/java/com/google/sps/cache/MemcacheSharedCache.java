@@ -0,0 +1,47 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.cache;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import java.util.logging.Level;
+
+/* SharedCache on top of App Engine memcache. Memcache errors are logged and treated as misses */
+final class MemcacheSharedCache implements SharedCache {
+
+  private final MemcacheService memcache;
+
+  MemcacheSharedCache() {
+    memcache = MemcacheServiceFactory.getMemcacheService();
+    memcache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
+  }
+
+  @Override
+  public Object get(String key) {
+    return memcache.get(key);
+  }
+
+  @Override
+  public void put(String key, Object value, int expirationSeconds) {
+    memcache.put(key, value, Expiration.byDeltaSeconds(expirationSeconds));
+  }
+
+  @Override
+  public Long increment(String key, long delta, long initialValue) {
+    return memcache.increment(key, delta, initialValue);
+  }
+}
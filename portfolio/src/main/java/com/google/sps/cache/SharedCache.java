@@ -0,0 +1,35 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.cache;
+
+/**
+ * Cache which is shared by all instances of the app.
+ * Values can be lost at any moment, so it must never be the only copy of the data.
+ */
+public interface SharedCache {
+
+  /* Returns cached value or null if there is no such key */
+  Object get(String key);
+
+  /* Puts value to the cache for expirationSeconds */
+  void put(String key, Object value, int expirationSeconds);
+
+  /**
+   * Atomically adds delta to the value of the key and returns the new value.
+   * If there is no such key, the value is set to initialValue first.
+   * Returns null if the cache is unavailable.
+   */
+  Long increment(String key, long delta, long initialValue);
+}
@@ -0,0 +1,42 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.cache;
+
+/**
+ * Creates SharedCache implementation chosen by "portfolio.cache" system property:
+ * "memcache" (default) or "local" for the in-process stand-in.
+ */
+public final class SharedCacheFactory {
+
+  private static final SharedCache sharedCache =
+      create(System.getProperty("portfolio.cache", "memcache"));
+
+  private SharedCacheFactory() {}
+
+  public static SharedCache getSharedCache() {
+    return sharedCache;
+  }
+
+  private static SharedCache create(String name) {
+    switch (name) {
+      case "memcache":
+        return new MemcacheSharedCache();
+      case "local":
+        return new LocalSharedCache();
+      default:
+        throw new IllegalArgumentException("Unknown portfolio.cache: " + name);
+    }
+  }
+}
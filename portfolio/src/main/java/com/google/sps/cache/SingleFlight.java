@@ -0,0 +1,92 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.cache;
+
+import com.google.sps.metrics.Metrics;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same key in this instance: the first caller loads the value
+ * and callers which come while it is loading wait for it and get the same value.
+ * Nothing is kept after the load finishes, so keys must change with the data,
+ * like the keys of CommentPageCache do.
+ */
+public final class SingleFlight<V> {
+
+  private final ConcurrentHashMap<String, CompletableFuture<V>> flights =
+      new ConcurrentHashMap<>();
+
+  private final LongAdder loads;
+  private final LongAdder coalesced;
+
+  /* name is the value of "flight" label of the metrics */
+  public SingleFlight(String name) {
+    loads = Metrics.counter("single_flight_loads_total{flight=\"" + name + "\"}");
+    coalesced = Metrics.counter("single_flight_coalesced_total{flight=\"" + name + "\"}");
+    Metrics.gauge("single_flight_coalescing_ratio{flight=\"" + name + "\"}",
+        this::coalescingRatio);
+  }
+
+  /* Returns the value of the key, calls loader unless another caller is loading it already.
+   * If the load throws, every caller waiting for it gets the exception.
+   */
+  public V get(String key, Supplier<V> loader) {
+    CompletableFuture<V> flight = new CompletableFuture<>();
+    CompletableFuture<V> running = flights.putIfAbsent(key, flight);
+    if (running != null) {
+      coalesced.increment();
+      try {
+        return running.join();
+      } catch (CompletionException e) {
+        throw unwrap(e);
+      }
+    }
+
+    loads.increment();
+    try {
+      V value = loader.get();
+      flight.complete(value);
+      return value;
+    } catch (RuntimeException | Error e) {
+      flight.completeExceptionally(e);
+      throw e;
+    } finally {
+      flights.remove(key, flight);
+    }
+  }
+
+  /* rethrows the exception of the loader as it was thrown to the loading caller */
+  private static RuntimeException unwrap(CompletionException e) {
+    Throwable cause = e.getCause();
+    if (cause instanceof RuntimeException) {
+      return (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return e;
+  }
+
+  /* share of the callers which got the value loaded for another caller */
+  private double coalescingRatio() {
+    long coalescedCount = coalesced.sum();
+    long total = coalescedCount + loads.sum();
+    return total == 0 ? 0 : (double) coalescedCount / total;
+  }
+}
@@ -0,0 +1,82 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.counter;
+
+import com.google.sps.metrics.Metrics;
+import com.google.sps.store.CommentStoreFactory;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Number of all comments, in the sharded counter "comments". It counts comments posted since
+ * the last deletion of all comments. The counter starts from the comments already in the store,
+ * which a local counter counts at every start of the instance.
+ * The sum is kept in process for "portfolio.counter.cacheMillis" system property millis
+ * (default 1000) and only while the comments version is the same, since the count changes
+ * only with the version.
+ */
+public final class CommentCount {
+
+  private static final ShardedCounter counter = ShardedCounterFactory.create("comments",
+      () -> CommentStoreFactory.getCommentStore().countAllComments());
+  private static final long CACHE_MILLIS = Long.getLong("portfolio.counter.cacheMillis", 1000);
+
+  private static final LongAdder hits = Metrics.counter("comment_count_cache_hits_total");
+  private static final LongAdder misses = Metrics.counter("comment_count_cache_misses_total");
+
+  /* the sum read under the comments version */
+  private static final class Snapshot {
+    private final Long version;
+    private final long count;
+    private final long readAtMillis;
+
+    private Snapshot(Long version, long count, long readAtMillis) {
+      this.version = version;
+      this.count = count;
+      this.readAtMillis = readAtMillis;
+    }
+  }
+
+  private static volatile Snapshot cached;
+
+  private CommentCount() {}
+
+  /* Returns the number of comments, version is the current comments version or null */
+  public static long get(Long version) {
+    long now = System.currentTimeMillis();
+    Snapshot snapshot = cached;
+    if (snapshot != null && Objects.equals(snapshot.version, version)
+        && now - snapshot.readAtMillis < CACHE_MILLIS) {
+      hits.increment();
+      return snapshot.count;
+    }
+    misses.increment();
+    long count = counter.sum();
+    cached = new Snapshot(version, count, now);
+    return count;
+  }
+
+  /* Is called after every stored comment, before the comments version is bumped */
+  public static void increment() {
+    counter.increment(1);
+    cached = null;
+  }
+
+  /* Is called after all comments are deleted, before the comments version is bumped */
+  public static void reset() {
+    counter.reset();
+    cached = null;
+  }
+}
@@ -0,0 +1,194 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.counter;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.sps.metrics.Metrics;
+import com.google.sps.store.InstrumentedDatastore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * ShardedCounter of "CounterShard" entities. An entity group takes about one write a second,
+ * so every increment updates a random shard in its own group.
+ * A reset doesn't touch the shards: it moves the epoch in the "CounterEpoch" entity,
+ * and shards written in an older epoch count as 0.
+ * The counter is seeded by the first call which finds no "CounterEpoch" entity: it stores
+ * the initial count as the base of a new epoch. An increment which seeds the counter is not
+ * added, its thing is in the initial count. Other increments racing with the seeding may be
+ * counted in the initial count too.
+ */
+final class DatastoreShardedCounter implements ShardedCounter {
+
+  private static final String SHARD_KIND = "CounterShard";
+  private static final String EPOCH_KIND = "CounterEpoch";
+  // an increment which conflicts with another one is retried on another shard
+  private static final int MAX_ATTEMPTS = 5;
+
+  private final DatastoreService datastore = InstrumentedDatastore.getDatastoreService();
+  private final Key epochKey;
+  private final LongSupplier initialCount;
+  private final List<Key> shardKeys = new ArrayList<>();
+  private final LongAdder conflicts;
+
+  DatastoreShardedCounter(String name, String family, int shards, LongSupplier initialCount) {
+    epochKey = KeyFactory.createKey(EPOCH_KIND, name);
+    this.initialCount = initialCount;
+    for (int shard = 0; shard < shards; shard++) {
+      shardKeys.add(KeyFactory.createKey(SHARD_KIND, name + "-" + shard));
+    }
+    conflicts = Metrics.counter("counter_shard_conflicts_total{counter=\"" + family + "\"}");
+  }
+
+  /* The epoch is read before the transaction, as reading it in every transaction would make
+   * all increments contend for its entity group again. An increment racing with a reset
+   * is written in the old epoch and isn't counted, as if it came before the reset.
+   */
+  @Override
+  public void increment(long delta) {
+    Entity epochEntity = datastore.get(Collections.singletonList(epochKey)).get(epochKey);
+    if (epochEntity == null) {
+      if (trySeed() != null) {
+        return;
+      }
+      epochEntity = readEpoch();
+    }
+    long epoch = (Long) epochEntity.getProperty("epoch");
+    for (int attempt = 1; ; attempt++) {
+      Key shardKey = shardKeys.get(ThreadLocalRandom.current().nextInt(shardKeys.size()));
+      Transaction transaction = datastore.beginTransaction();
+      try {
+        Entity shard;
+        try {
+          shard = datastore.get(transaction, shardKey);
+        } catch (EntityNotFoundException e) {
+          shard = new Entity(shardKey);
+        }
+        // a shard already written after a newer reset keeps its epoch and count
+        Long shardEpoch = (Long) shard.getProperty("epoch");
+        long writeEpoch = shardEpoch != null ? Math.max(epoch, shardEpoch) : epoch;
+        shard.setUnindexedProperty("count", count(shard, writeEpoch) + delta);
+        shard.setUnindexedProperty("epoch", writeEpoch);
+        datastore.put(transaction, shard);
+        transaction.commit();
+        return;
+      } catch (ConcurrentModificationException e) {
+        conflicts.increment();
+        if (attempt == MAX_ATTEMPTS) {
+          throw e;
+        }
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+  }
+
+  /* The epoch and all shards are read with one batch get */
+  @Override
+  public long sum() {
+    List<Key> keys = new ArrayList<>(shardKeys);
+    keys.add(epochKey);
+    Map<Key, Entity> entities = datastore.get(keys);
+    Entity epochEntity = getEpoch(entities);
+    long epoch = (Long) epochEntity.getProperty("epoch");
+    Long base = (Long) epochEntity.getProperty("base");
+    long sum = base != null ? base : 0;
+    for (Key shardKey : shardKeys) {
+      Entity shard = entities.get(shardKey);
+      if (shard != null) {
+        sum += count(shard, epoch);
+      }
+    }
+    return sum;
+  }
+
+  @Override
+  public void reset() {
+    Entity epoch = new Entity(epochKey);
+    epoch.setUnindexedProperty("epoch", System.currentTimeMillis());
+    datastore.put(epoch);
+  }
+
+  /* returns the epoch entity from the batch get result, seeds the counter if there is none */
+  private Entity getEpoch(Map<Key, Entity> entities) {
+    Entity epoch = entities.get(epochKey);
+    if (epoch != null) {
+      return epoch;
+    }
+    epoch = trySeed();
+    return epoch != null ? epoch : readEpoch();
+  }
+
+  /* reads the epoch entity stored by another call */
+  private Entity readEpoch() {
+    Entity epoch = datastore.get(Collections.singletonList(epochKey)).get(epochKey);
+    if (epoch == null) {
+      throw new ConcurrentModificationException("Counter epoch is not stored yet");
+    }
+    return epoch;
+  }
+
+  /* Stores a new epoch with the initial count as its base and returns it, or returns null
+   * if another call did it first. Shards written before it, e.g. by an older version
+   * of the app, are not counted.
+   */
+  private Entity trySeed() {
+    // the count can't be read in the transaction, it is read once before it
+    long base = initialCount.getAsLong();
+    Transaction transaction = datastore.beginTransaction();
+    try {
+      try {
+        datastore.get(transaction, epochKey);
+        return null;
+      } catch (EntityNotFoundException e) {
+        Entity epoch = new Entity(epochKey);
+        epoch.setUnindexedProperty("epoch", System.currentTimeMillis());
+        epoch.setUnindexedProperty("base", base);
+        datastore.put(transaction, epoch);
+        transaction.commit();
+        return epoch;
+      }
+    } catch (ConcurrentModificationException e) {
+      // another call seeded the counter
+      return null;
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  /* returns the count of the shard, 0 if it was written before the reset */
+  private static long count(Entity shard, long epoch) {
+    Long shardEpoch = (Long) shard.getProperty("epoch");
+    if (shardEpoch == null || shardEpoch != epoch) {
+      return 0;
+    }
+    return (Long) shard.getProperty("count");
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.counter;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * In-process stand-in for DatastoreShardedCounter, used for tests and local runs without
+ * App Engine services. LongAdder already spreads concurrent increments over cells.
+ * It is shared only by the code of one instance. It is seeded on its first use, as the datastore
+ * one is, so an instance counts the things already stored at every start.
+ */
+final class LocalShardedCounter implements ShardedCounter {
+
+  private final LongAdder count = new LongAdder();
+  private final LongSupplier initialCount;
+  private volatile boolean seeded;
+
+  LocalShardedCounter(LongSupplier initialCount) {
+    this.initialCount = initialCount;
+  }
+
+  /* things are counted after they are stored, so the initial count has the seeding one already */
+  @Override
+  public void increment(long delta) {
+    if (!seed()) {
+      count.add(delta);
+    }
+  }
+
+  @Override
+  public long sum() {
+    seed();
+    return count.sum();
+  }
+
+  /* increments made during the reset may be lost */
+  @Override
+  public void reset() {
+    seeded = true;
+    count.reset();
+  }
+
+  /* adds the initial count on the first use, returns true if this call did it */
+  private boolean seed() {
+    if (seeded) {
+      return false;
+    }
+    synchronized (this) {
+      if (seeded) {
+        return false;
+      }
+      count.add(initialCount.getAsLong());
+      seeded = true;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,31 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.counter;
+
+/**
+ * Counter which is split into shards, so concurrent increments mostly update different shards.
+ * Implementations are chosen with ShardedCounterFactory.
+ */
+public interface ShardedCounter {
+
+  /* Adds delta to one of the shards */
+  void increment(long delta);
+
+  /* Returns the sum of all shards */
+  long sum();
+
+  /* Sets the counter to 0, increments which come after it are counted again */
+  void reset();
+}
@@ -0,0 +1,55 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.counter;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Creates ShardedCounter implementation chosen by "portfolio.counter" system property:
+ * "datastore" with "portfolio.counter.shards" shards (default 20),
+ * or "local" for the in-process stand-in. The default follows "portfolio.store":
+ * "datastore" for the datastore store, "local" for the stores which don't use datastore.
+ * A counter starts from its initial count, which is read when the counter is first used:
+ * by a local one at every start of the instance, by a datastore one once. The things it counts
+ * may have been there before it. Things are counted after they are stored, so the increment
+ * which seeds the counter is already in the initial count and is not added again.
+ */
+public final class ShardedCounterFactory {
+
+  private ShardedCounterFactory() {}
+
+  /* Returns the counter with given name, counters with different names are independent */
+  public static ShardedCounter create(String name, LongSupplier initialCount) {
+    return create(name, name, initialCount);
+  }
+
+  /* Returns the counter with given name, its metrics are labeled with the family of counters,
+   * so counters created per user don't add metrics per user.
+   */
+  public static ShardedCounter create(String name, String family, LongSupplier initialCount) {
+    String store = System.getProperty("portfolio.store", "datastore");
+    String implementation = System.getProperty("portfolio.counter",
+        "datastore".equals(store) ? "datastore" : "local");
+    switch (implementation) {
+      case "datastore":
+        int shards = Integer.getInteger("portfolio.counter.shards", 20);
+        return new DatastoreShardedCounter(name, family, shards, initialCount);
+      case "local":
+        return new LocalShardedCounter(initialCount);
+      default:
+        throw new IllegalArgumentException("Unknown portfolio.counter: " + implementation);
+    }
+  }
+}
@@ -14,6 +14,8 @@
 
 package com.google.sps.data;
 
+import java.util.List;
+
 /* A comment item */
 public final class Comment {
 
@@ -21,15 +23,44 @@ public final class Comment {
   private final String commentOwner;
   private final long timestamp;
   private final String commentImageUrl;
+  // smaller copies of the image from the narrowest, null until they are created
+  private final List<ImageVariant> commentImageVariants;
 
   public Comment(String commentText, String commentOwner, long timestamp, String commentImageUrl) {
+    this(commentText, commentOwner, timestamp, commentImageUrl, null);
+  }
+
+  public Comment(String commentText, String commentOwner, long timestamp, String commentImageUrl,
+      List<ImageVariant> commentImageVariants) {
     this.commentText = commentText;
     this.commentOwner = commentOwner;
     this.timestamp = timestamp;
     this.commentImageUrl = commentImageUrl;
+    this.commentImageVariants = commentImageVariants;
+  }
+
+  public String getCommentText() {
+    return commentText;
+  }
+
+  public String getCommentOwner() {
+    return commentOwner;
   }
 
   public long getTimestamp(){
       return timestamp;
   }
+
+  public String getCommentImageUrl() {
+    return commentImageUrl;
+  }
+
+  public List<ImageVariant> getCommentImageVariants() {
+    return commentImageVariants;
+  }
+
+  /* Returns the same comment with given image variants */
+  public Comment withImageVariants(List<ImageVariant> imageVariants) {
+    return new Comment(commentText, commentOwner, timestamp, commentImageUrl, imageVariants);
+  }
 }
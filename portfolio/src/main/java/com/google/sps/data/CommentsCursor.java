@@ -0,0 +1,92 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * Opaque pagination token which is sent to the client in CommentsSend.
+ * Remembers the timestamp of the comment on the edge of the page and the direction to go from it,
+ * so the next request can continue right after that comment instead of re-reading the page.
+ * Comments with equal timestamps are ordered by their ids, which are given by the store,
+ * so comments posted in the same millisecond are not skipped on a page boundary.
+ */
+public final class CommentsCursor {
+
+  private static final byte NEXT = 'n';
+  private static final byte PREVIOUS = 'p';
+
+  private final boolean next;
+  private final long timestamp;
+  private final long id;
+
+  private CommentsCursor(boolean next, long timestamp, long id) {
+    this.next = next;
+    this.timestamp = timestamp;
+    this.id = id;
+  }
+
+  /* cursor to the comments older than the comment with given timestamp and id */
+  public static CommentsCursor next(long timestamp, long id) {
+    return new CommentsCursor(true, timestamp, id);
+  }
+
+  /* cursor to the comments newer than the comment with given timestamp and id */
+  public static CommentsCursor previous(long timestamp, long id) {
+    return new CommentsCursor(false, timestamp, id);
+  }
+
+  /**
+   * Parses the string returned by toWebSafeString.
+   * Cursors given out before they had ids are still accepted: they skip all comments
+   * with their timestamp, as they did before.
+   * Throws IllegalArgumentException if the string is not a valid cursor.
+   */
+  public static CommentsCursor fromWebSafeString(String encoded) {
+    byte[] bytes = Base64.getUrlDecoder().decode(encoded);
+    boolean withId = bytes.length == 1 + 2 * Long.BYTES;
+    if ((!withId && bytes.length != 1 + Long.BYTES)
+        || (bytes[0] != NEXT && bytes[0] != PREVIOUS)) {
+      throw new IllegalArgumentException("Invalid comments cursor: " + encoded);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    boolean next = buffer.get() == NEXT;
+    long timestamp = buffer.getLong();
+    if (withId) {
+      return new CommentsCursor(next, timestamp, buffer.getLong());
+    }
+    return new CommentsCursor(next, timestamp, next ? Long.MIN_VALUE : Long.MAX_VALUE);
+  }
+
+  public String toWebSafeString() {
+    ByteBuffer buffer = ByteBuffer.allocate(1 + 2 * Long.BYTES);
+    buffer.put(next ? NEXT : PREVIOUS).putLong(timestamp).putLong(id);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+  }
+
+  public boolean isNext() {
+    return next;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /* id of the comment on the edge of the page, among the comments with its timestamp */
+  public long getId() {
+    return id;
+  }
+}
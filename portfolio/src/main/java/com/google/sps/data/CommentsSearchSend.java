@@ -0,0 +1,32 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+
+/**
+ * Represents an object which is returned from CommentSearchServlet.
+ * Contains the best matching comments, the best first, and the number of all matching comments.
+ */
+public final class CommentsSearchSend {
+
+  private final ArrayList<Comment> comments;
+  private final int totalMatches;
+
+  public CommentsSearchSend(ArrayList<Comment> comments, int totalMatches) {
+    this.comments = comments;
+    this.totalMatches = totalMatches;
+  }
+}
@@ -18,15 +18,38 @@ import java.util.ArrayList;
 
 /**
  * Represents an object which is returned from DataServlet.doGet.
- * Contains comments and some developer data
+ * Contains comments and cursors to the next and previous pages.
+ * A cursor is null if there is no page in that direction.
+ * Pages of one owner have the number of all comments of the owner, it is null for other pages.
+ * totalComments is the number of all comments (of the owner for pages of one owner) and totalPages
+ * is the number of pages of this size they take, both are null if they weren't counted.
+ * DataServlet writes the same json with CommentsSendWriter without creating this object.
  */
 public final class CommentsSend {
 
-  private final long lastTimestamp;
   private final ArrayList<Comment> comments;
+  private final String nextCursor;
+  private final String previousCursor;
+  private final Long ownerComments;
+  private final Long totalComments;
+  private final Long totalPages;
 
-  public CommentsSend(long timestamp, ArrayList<Comment> comments) {
-    this.lastTimestamp = timestamp;
+  public CommentsSend(ArrayList<Comment> comments, String nextCursor, String previousCursor) {
+    this(comments, nextCursor, previousCursor, null);
+  }
+
+  public CommentsSend(ArrayList<Comment> comments, String nextCursor, String previousCursor,
+      Long ownerComments) {
+    this(comments, nextCursor, previousCursor, ownerComments, null, null);
+  }
+
+  public CommentsSend(ArrayList<Comment> comments, String nextCursor, String previousCursor,
+      Long ownerComments, Long totalComments, Long totalPages) {
     this.comments = comments;
+    this.nextCursor = nextCursor;
+    this.previousCursor = previousCursor;
+    this.ownerComments = ownerComments;
+    this.totalComments = totalComments;
+    this.totalPages = totalPages;
   }
 }
@@ -0,0 +1,103 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+/**
+ * Writes the same json as Gson writes for CommentsSend, but one comment at a time,
+ * so the comments of a page never have to be in memory together.
+ * Usage: beginComments(), writeComment() for every comment from newest to oldest, endComments().
+ * Cursors are made from the first and the last written comments and their ids in the store.
+ */
+public final class CommentsSendWriter {
+
+  private final Gson gson;
+  private final JsonWriter out;
+  private int commentsNumber;
+  private long newestTimestamp;
+  private long newestId;
+  private long oldestTimestamp;
+  private long oldestId;
+  private Long ownerComments;
+  private Long totalComments;
+  private Long totalPages;
+
+  public CommentsSendWriter(Gson gson, JsonWriter out) {
+    this.gson = gson;
+    this.out = out;
+  }
+
+  public void beginComments() throws IOException {
+    out.beginObject();
+    out.name("comments");
+    out.beginArray();
+  }
+
+  /* id orders comments with equal timestamps, comments are written from the greatest id */
+  public void writeComment(Comment comment, long id) throws IOException {
+    gson.toJson(comment, Comment.class, out);
+    if (commentsNumber == 0) {
+      newestTimestamp = comment.getTimestamp();
+      newestId = id;
+    }
+    oldestTimestamp = comment.getTimestamp();
+    oldestId = id;
+    commentsNumber++;
+  }
+
+  /* Sets the number of all comments of the owner, for pages of one owner */
+  public void setOwnerComments(long ownerComments) {
+    this.ownerComments = ownerComments;
+  }
+
+  /* Sets the number of all comments of the page's feed and the number of its pages */
+  public void setTotals(long totalComments, long totalPages) {
+    this.totalComments = totalComments;
+    this.totalPages = totalPages;
+  }
+
+  /* Returns number of comments written so far */
+  public int getCommentsNumber() {
+    return commentsNumber;
+  }
+
+  /**
+   * Finishes the page. hasNewer and hasOlder tell if there are comments before the first
+   * and after the last written comment. Cursors are not written for the empty page or if there
+   * are no comments in their direction, the same way Gson skips null fields.
+   */
+  public void endComments(boolean hasNewer, boolean hasOlder) throws IOException {
+    out.endArray();
+    if (commentsNumber > 0 && hasOlder) {
+      out.name("nextCursor").value(CommentsCursor.next(oldestTimestamp, oldestId).toWebSafeString());
+    }
+    if (commentsNumber > 0 && hasNewer) {
+      out.name("previousCursor")
+          .value(CommentsCursor.previous(newestTimestamp, newestId).toWebSafeString());
+    }
+    if (ownerComments != null) {
+      out.name("ownerComments").value(ownerComments);
+    }
+    if (totalComments != null) {
+      out.name("totalComments").value(totalComments);
+      out.name("totalPages").value(totalPages);
+    }
+    out.endObject();
+    out.flush();
+  }
+}
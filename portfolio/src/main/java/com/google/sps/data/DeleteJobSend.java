@@ -0,0 +1,41 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+/**
+ * Represents an object which is returned from CommentDeleteServlet.
+ * Contains progress of the background job which deletes all comments.
+ * State is "running", "done" or "failed".
+ * Comments with timestamp not greater than the tombstone are deleted by the job.
+ */
+public final class DeleteJobSend {
+
+  private final long jobId;
+  private final String state;
+  private final long deletedComments;
+  // the client doesn't need it
+  private final transient long tombstone;
+
+  public DeleteJobSend(long jobId, String state, long deletedComments, long tombstone) {
+    this.jobId = jobId;
+    this.state = state;
+    this.deletedComments = deletedComments;
+    this.tombstone = tombstone;
+  }
+
+  public long getTombstone() {
+    return tombstone;
+  }
+}
@@ -0,0 +1,345 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.filters;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response which compresses its body with gzip or deflate while it is written.
+ * The first MIN_COMPRESSED_SIZE bytes are held back: a smaller body is sent as is,
+ * a bigger one is compressed and streamed, so the whole body is never kept in memory.
+ * finish() must be called after the servlet is done.
+ */
+final class CompressingResponse extends HttpServletResponseWrapper {
+  // smaller bodies fit into one packet anyway, compressing them only costs CPU
+  static final int MIN_COMPRESSED_SIZE = 1024;
+  private static final int DEFLATE_BUFFER_SIZE = 8192;
+  // magic number, deflate method, no flags, no time, no extra flags, unknown OS
+  private static final byte[] GZIP_HEADER =
+      {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  private final String encoding;
+  private final DeflaterPool deflaterPool;
+  private final CompressingOutputStream stream = new CompressingOutputStream();
+  private PrintWriter writer;
+  // Content-Length set by the servlet, it is only sent if the body is not compressed
+  private long contentLength = -1;
+  // the servlet sent an error or a redirect, the container writes the body then
+  private boolean bypassed;
+
+  private long uncompressedBytes;
+  private long compressedBytes;
+  private long compressionNanos;
+
+  /* encoding is "gzip" or "deflate", deflaterPool has to match it */
+  CompressingResponse(HttpServletResponse response, String encoding, DeflaterPool deflaterPool) {
+    super(response);
+    this.encoding = encoding;
+    this.deflaterPool = deflaterPool;
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream() {
+    return stream;
+  }
+
+  @Override
+  public PrintWriter getWriter() {
+    if (writer == null) {
+      Charset charset = Charset.forName(getResponse().getCharacterEncoding());
+      writer = new PrintWriter(new OutputStreamWriter(stream, charset));
+    }
+    return writer;
+  }
+
+  @Override
+  public void flushBuffer() throws IOException {
+    if (writer != null) {
+      writer.flush();
+    }
+    stream.flush();
+  }
+
+  @Override
+  public void setContentLength(int length) {
+    contentLength = length;
+  }
+
+  @Override
+  public void setContentLengthLong(long length) {
+    contentLength = length;
+  }
+
+  @Override
+  public void setHeader(String name, String value) {
+    if ("Content-Length".equalsIgnoreCase(name)) {
+      contentLength = value == null ? -1 : Long.parseLong(value);
+    } else {
+      super.setHeader(name, value);
+    }
+  }
+
+  @Override
+  public void addHeader(String name, String value) {
+    if ("Content-Length".equalsIgnoreCase(name)) {
+      setHeader(name, value);
+    } else {
+      super.addHeader(name, value);
+    }
+  }
+
+  @Override
+  public void sendError(int status) throws IOException {
+    bypassed = true;
+    super.sendError(status);
+  }
+
+  @Override
+  public void sendError(int status, String message) throws IOException {
+    bypassed = true;
+    super.sendError(status, message);
+  }
+
+  @Override
+  public void sendRedirect(String location) throws IOException {
+    bypassed = true;
+    super.sendRedirect(location);
+  }
+
+  @Override
+  public void resetBuffer() {
+    stream.resetBuffer();
+    super.resetBuffer();
+  }
+
+  /* Writes the rest of the body. Returns the deflater to the pool even if writing fails */
+  void finish() throws IOException {
+    try {
+      if (writer != null) {
+        writer.flush();
+      }
+      stream.finish();
+    } finally {
+      stream.releaseDeflater();
+    }
+  }
+
+  /* Releases resources without writing anything, e.g. when the servlet has thrown */
+  void abort() {
+    stream.releaseDeflater();
+  }
+
+  boolean isCompressed() {
+    return compressedBytes > 0;
+  }
+
+  long getSavedBytes() {
+    return uncompressedBytes - compressedBytes;
+  }
+
+  long getCompressionNanos() {
+    return compressionNanos;
+  }
+
+  private static long cpuTimeNanos() {
+    return threads.isCurrentThreadCpuTimeSupported()
+        ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+
+  private final class CompressingOutputStream extends ServletOutputStream {
+    private final byte[] held = new byte[MIN_COMPRESSED_SIZE];
+    private int heldLength;
+    // null while the body is held back or if it is sent as is
+    private Deflater deflater;
+    private byte[] deflateBuffer;
+    private final CRC32 crc = new CRC32();
+    private boolean started;
+    private boolean finished;
+
+    @Override
+    public void write(int b) throws IOException {
+      if (!started && heldLength < held.length) {
+        held[heldLength++] = (byte) b;
+        return;
+      }
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      if (finished) {
+        throw new IOException("Response is already finished");
+      }
+      if (!started) {
+        if (heldLength + length <= held.length) {
+          System.arraycopy(bytes, offset, held, heldLength, length);
+          heldLength += length;
+          return;
+        }
+        start(true);
+      }
+      if (deflater == null) {
+        getResponse().getOutputStream().write(bytes, offset, length);
+      } else {
+        compress(bytes, offset, length);
+      }
+    }
+
+    /* Explicit flush sends everything written so far, once the body is not held back */
+    @Override
+    public void flush() throws IOException {
+      if (!started) {
+        return;
+      }
+      if (deflater != null) {
+        long begin = cpuTimeNanos();
+        int length;
+        while ((length = deflater.deflate(deflateBuffer, 0, deflateBuffer.length,
+            Deflater.SYNC_FLUSH)) > 0) {
+          send(deflateBuffer, length);
+        }
+        compressionNanos += cpuTimeNanos() - begin;
+      }
+      getResponse().getOutputStream().flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      finish();
+    }
+
+    /* only blocking output is supported */
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener) {
+      throw new IllegalStateException("Non-blocking output is not supported with compression");
+    }
+
+    private void resetBuffer() {
+      if (!started) {
+        heldLength = 0;
+      }
+    }
+
+    /* Decides how the body is sent and sends the held back bytes */
+    private void start(boolean compress) throws IOException {
+      started = true;
+      HttpServletResponse response = (HttpServletResponse) getResponse();
+      if (compress && !bypassed && !response.isCommitted()
+          && response.getHeader("Content-Encoding") == null) {
+        response.setHeader("Content-Encoding", encoding);
+        // the compressed body is another representation, so the ETag can only be weak
+        String etag = response.getHeader("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+          response.setHeader("ETag", "W/" + etag);
+        }
+        deflater = deflaterPool.borrow();
+        deflateBuffer = new byte[DEFLATE_BUFFER_SIZE];
+        if (encoding.equals("gzip")) {
+          send(GZIP_HEADER, GZIP_HEADER.length);
+        }
+        compress(held, 0, heldLength);
+      } else {
+        if (contentLength >= 0) {
+          response.setContentLengthLong(contentLength);
+        } else if (!compress && heldLength > 0) {
+          // the whole body is known
+          response.setContentLength(heldLength);
+        }
+        if (heldLength > 0) {
+          response.getOutputStream().write(held, 0, heldLength);
+        }
+      }
+    }
+
+    private void compress(byte[] bytes, int offset, int length) throws IOException {
+      long begin = cpuTimeNanos();
+      uncompressedBytes += length;
+      if (encoding.equals("gzip")) {
+        crc.update(bytes, offset, length);
+      }
+      deflater.setInput(bytes, offset, length);
+      while (!deflater.needsInput()) {
+        send(deflateBuffer, deflater.deflate(deflateBuffer));
+      }
+      compressionNanos += cpuTimeNanos() - begin;
+    }
+
+    private void finish() throws IOException {
+      if (finished) {
+        return;
+      }
+      if (bypassed) {
+        finished = true;
+        return;
+      }
+      if (!started) {
+        start(false);
+      }
+      finished = true;
+      if (deflater == null) {
+        return;
+      }
+      long begin = cpuTimeNanos();
+      deflater.finish();
+      while (!deflater.finished()) {
+        send(deflateBuffer, deflater.deflate(deflateBuffer));
+      }
+      if (encoding.equals("gzip")) {
+        byte[] trailer = new byte[8];
+        writeIntLittleEndian(trailer, 0, (int) crc.getValue());
+        writeIntLittleEndian(trailer, 4, (int) uncompressedBytes);
+        send(trailer, trailer.length);
+      }
+      compressionNanos += cpuTimeNanos() - begin;
+    }
+
+    private void send(byte[] bytes, int length) throws IOException {
+      if (length > 0) {
+        getResponse().getOutputStream().write(bytes, 0, length);
+        compressedBytes += length;
+      }
+    }
+
+    private void releaseDeflater() {
+      if (deflater != null) {
+        deflaterPool.release(deflater);
+        deflater = null;
+      }
+    }
+  }
+
+  private static void writeIntLittleEndian(byte[] bytes, int offset, int value) {
+    for (int i = 0; i < 4; i++) {
+      bytes[offset + i] = (byte) (value >>> (8 * i));
+    }
+  }
+}
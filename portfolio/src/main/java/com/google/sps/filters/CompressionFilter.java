@@ -0,0 +1,145 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.filters;
+
+import com.google.sps.metrics.Metrics;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Compresses responses of the json endpoints with gzip or deflate, as the client accepts.
+ * Bodies smaller than CompressingResponse.MIN_COMPRESSED_SIZE are sent as they are.
+ * Compressed responses, saved bytes and CPU time spent on compression are counted by endpoint.
+ * Is mapped in web.xml, which puts it in the filter chain order.
+ */
+public class CompressionFilter implements Filter {
+
+  /* counters of one endpoint */
+  private static final class EndpointMetrics {
+    private final LongAdder responses;
+    private final LongAdder savedBytes;
+    private final LongAdder cpuNanos;
+
+    private EndpointMetrics(String endpoint) {
+      String label = "{endpoint=\"" + endpoint + "\"}";
+      responses = Metrics.counter("http_compressed_responses_total" + label);
+      savedBytes = Metrics.counter("http_compression_saved_bytes_total" + label);
+      cpuNanos = Metrics.counter("http_compression_cpu_nanos_total" + label);
+    }
+  }
+
+  private static final DeflaterPool gzipDeflaters =
+      new DeflaterPool(Deflater.DEFAULT_COMPRESSION, true);
+  private static final DeflaterPool deflateDeflaters =
+      new DeflaterPool(Deflater.DEFAULT_COMPRESSION, false);
+
+  private final Map<String, EndpointMetrics> metrics = new ConcurrentHashMap<>();
+
+  @Override
+  public void init(FilterConfig config) {}
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    HttpServletResponse httpResponse = (HttpServletResponse) response;
+    // caches must keep compressed and plain responses apart
+    httpResponse.addHeader("Vary", "Accept-Encoding");
+
+    String encoding = negotiate(httpRequest.getHeader("Accept-Encoding"));
+    if (encoding == null || "HEAD".equals(httpRequest.getMethod())) {
+      chain.doFilter(request, response);
+      return;
+    }
+
+    CompressingResponse compressingResponse = new CompressingResponse(httpResponse, encoding,
+        encoding.equals("gzip") ? gzipDeflaters : deflateDeflaters);
+    try {
+      chain.doFilter(request, compressingResponse);
+    } catch (IOException | ServletException | RuntimeException e) {
+      compressingResponse.abort();
+      throw e;
+    }
+    compressingResponse.finish();
+
+    if (compressingResponse.isCompressed()) {
+      EndpointMetrics endpoint =
+          metrics.computeIfAbsent(httpRequest.getServletPath(), EndpointMetrics::new);
+      endpoint.responses.increment();
+      endpoint.savedBytes.add(compressingResponse.getSavedBytes());
+      endpoint.cpuNanos.add(compressingResponse.getCompressionNanos());
+    }
+  }
+
+  @Override
+  public void destroy() {}
+
+  /**
+   * Returns "gzip" or "deflate", whichever the Accept-Encoding header prefers,
+   * gzip if they are equal. Returns null if neither is accepted.
+   */
+  static String negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    double gzip = -1;
+    double deflate = -1;
+    double any = -1;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim().toLowerCase();
+      double quality = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String parameter = parts[i].trim();
+        if (parameter.startsWith("q=")) {
+          try {
+            quality = Double.parseDouble(parameter.substring(2));
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      if (name.equals("gzip") || name.equals("x-gzip")) {
+        gzip = quality;
+      } else if (name.equals("deflate")) {
+        deflate = quality;
+      } else if (name.equals("*")) {
+        any = quality;
+      }
+    }
+    // codings which are not named are accepted with the quality of "*"
+    if (gzip < 0) {
+      gzip = any;
+    }
+    if (deflate < 0) {
+      deflate = any;
+    }
+    if (gzip <= 0 && deflate <= 0) {
+      return null;
+    }
+    return gzip >= deflate ? "gzip" : "deflate";
+  }
+}
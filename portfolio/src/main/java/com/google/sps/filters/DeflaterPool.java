@@ -0,0 +1,50 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.filters;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Pool of Deflaters, so responses don't allocate a compressor and its native memory every time.
+ * At most MAX_IDLE deflaters are kept, extra ones are released when they are returned.
+ */
+final class DeflaterPool {
+  private static final int MAX_IDLE = 32;
+
+  private final BlockingQueue<Deflater> idle = new ArrayBlockingQueue<>(MAX_IDLE);
+  private final int level;
+  private final boolean nowrap;
+
+  /* nowrap deflaters write raw deflate data without zlib header, as gzip needs */
+  DeflaterPool(int level, boolean nowrap) {
+    this.level = level;
+    this.nowrap = nowrap;
+  }
+
+  Deflater borrow() {
+    Deflater deflater = idle.poll();
+    return deflater != null ? deflater : new Deflater(level, nowrap);
+  }
+
+  /* Returns the deflater to the pool, it must not be used by the caller anymore */
+  void release(Deflater deflater) {
+    deflater.reset();
+    if (!idle.offer(deflater)) {
+      deflater.end();
+    }
+  }
+}
@@ -0,0 +1,125 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.filters;
+
+import com.google.sps.metrics.Histogram;
+import com.google.sps.metrics.Metrics;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRegistration;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Records latency of every request in http_request_duration_seconds histogram by servlet path
+ * and status class, and the number of requests in progress in http_requests_in_flight by path.
+ * Paths which are not mapped to a servlet are counted as "other", so the number of metrics
+ * doesn't depend on the requested urls. Async requests are recorded when they complete.
+ * Is mapped in web.xml, which puts it in the filter chain order.
+ */
+public class MetricsFilter implements Filter {
+  private static final String OTHER_PATH = "other";
+
+  /* metrics of one path */
+  private static final class PathMetrics {
+    private final String path;
+    private final LongAdder inFlight = new LongAdder();
+    // by status class: 1xx to 5xx, created when a status of the class is seen first
+    private final Histogram[] latencies = new Histogram[5];
+
+    private PathMetrics(String path) {
+      this.path = path;
+      Metrics.gauge("http_requests_in_flight{path=\"" + path + "\"}", inFlight::sum);
+    }
+
+    private void record(int status, long nanos) {
+      int statusClass = Math.min(Math.max(status / 100, 1), 5);
+      Histogram latency = latencies[statusClass - 1];
+      if (latency == null) {
+        // the registry returns the same histogram to racing threads
+        latency = Metrics.histogram("http_request_duration_seconds{path=\"" + path
+            + "\",status=\"" + statusClass + "xx\"}");
+        latencies[statusClass - 1] = latency;
+      }
+      latency.record(nanos);
+      inFlight.decrement();
+    }
+  }
+
+  private final Set<String> servletPaths = new HashSet<>();
+  private final Map<String, PathMetrics> metrics = new ConcurrentHashMap<>();
+
+  @Override
+  public void init(FilterConfig config) {
+    for (ServletRegistration registration :
+        config.getServletContext().getServletRegistrations().values()) {
+      servletPaths.addAll(registration.getMappings());
+    }
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    long start = System.nanoTime();
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    HttpServletResponse httpResponse = (HttpServletResponse) response;
+    String path = servletPaths.contains(httpRequest.getServletPath())
+        ? httpRequest.getServletPath() : OTHER_PATH;
+    PathMetrics pathMetrics = metrics.computeIfAbsent(path, PathMetrics::new);
+    pathMetrics.inFlight.increment();
+
+    try {
+      chain.doFilter(request, response);
+    } catch (IOException | ServletException | RuntimeException e) {
+      pathMetrics.record(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, System.nanoTime() - start);
+      throw e;
+    }
+
+    if (request.isAsyncStarted()) {
+      request.getAsyncContext().addListener(new AsyncListener() {
+        @Override
+        public void onComplete(AsyncEvent event) {
+          pathMetrics.record(httpResponse.getStatus(), System.nanoTime() - start);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {}
+
+        @Override
+        public void onError(AsyncEvent event) {}
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {}
+      });
+    } else {
+      pathMetrics.record(httpResponse.getStatus(), System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void destroy() {}
+}
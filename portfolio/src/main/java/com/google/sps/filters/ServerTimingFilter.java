@@ -0,0 +1,55 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.filters;
+
+import com.google.sps.store.DatastoreUsage;
+import java.io.IOException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Records datastore calls made while the request is handled and sends them
+ * in Server-Timing header, e.g. datastore-get;dur=1.250;desc="2 calls, 2 entities",
+ * so they are shown in the browser devtools. Calls made by the request after it went async
+ * are not recorded.
+ * Is mapped in web.xml, which puts it in the filter chain order.
+ */
+public class ServerTimingFilter implements Filter {
+
+  @Override
+  public void init(FilterConfig config) {}
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    DatastoreUsage usage = DatastoreUsage.start();
+    ServerTimingResponse timingResponse =
+        new ServerTimingResponse((HttpServletResponse) response, usage);
+    try {
+      chain.doFilter(request, timingResponse);
+      timingResponse.setServerTiming();
+    } finally {
+      usage.stop();
+    }
+  }
+
+  @Override
+  public void destroy() {}
+}
@@ -0,0 +1,139 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.filters;
+
+import com.google.sps.store.DatastoreUsage;
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response which sets Server-Timing header with the datastore usage right before it is sent,
+ * that is when the servlet flushes the body, sends an error or a redirect, or when it is done.
+ * A body bigger than the container buffer is sent without the header.
+ */
+final class ServerTimingResponse extends HttpServletResponseWrapper {
+  private final DatastoreUsage usage;
+  private ServletOutputStream stream;
+  private PrintWriter writer;
+
+  ServerTimingResponse(HttpServletResponse response, DatastoreUsage usage) {
+    super(response);
+    this.usage = usage;
+  }
+
+  /* Sets the header with the usage so far, unless the headers are already sent */
+  void setServerTiming() {
+    if (!isCommitted() && !usage.isEmpty()) {
+      setHeader("Server-Timing", usage.toServerTiming());
+    }
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream() throws IOException {
+    if (stream == null) {
+      stream = new ServerTimingOutputStream(getResponse().getOutputStream());
+    }
+    return stream;
+  }
+
+  @Override
+  public PrintWriter getWriter() throws IOException {
+    if (writer == null) {
+      writer = new PrintWriter(getResponse().getWriter()) {
+        @Override
+        public void flush() {
+          setServerTiming();
+          super.flush();
+        }
+
+        @Override
+        public void close() {
+          setServerTiming();
+          super.close();
+        }
+      };
+    }
+    return writer;
+  }
+
+  @Override
+  public void flushBuffer() throws IOException {
+    setServerTiming();
+    super.flushBuffer();
+  }
+
+  @Override
+  public void sendError(int status, String message) throws IOException {
+    setServerTiming();
+    super.sendError(status, message);
+  }
+
+  @Override
+  public void sendError(int status) throws IOException {
+    setServerTiming();
+    super.sendError(status);
+  }
+
+  @Override
+  public void sendRedirect(String location) throws IOException {
+    setServerTiming();
+    super.sendRedirect(location);
+  }
+
+  /* output stream of the response which sets the header before it is flushed */
+  private final class ServerTimingOutputStream extends ServletOutputStream {
+    private final ServletOutputStream out;
+
+    private ServerTimingOutputStream(ServletOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      out.write(bytes, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      setServerTiming();
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      setServerTiming();
+      out.close();
+    }
+
+    @Override
+    public boolean isReady() {
+      return out.isReady();
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener) {
+      out.setWriteListener(listener);
+    }
+  }
+}
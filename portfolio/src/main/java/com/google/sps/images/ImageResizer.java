@@ -0,0 +1,33 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.images;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.sps.data.ImageVariant;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Creates smaller copies of an uploaded image.
+ * Implementations are chosen by "portfolio.images.resizer" system property, see ImageVariantJobs.
+ */
+interface ImageResizer {
+
+  /**
+   * Returns variants of the image with given widths, from the narrowest. Widths which are not
+   * smaller than the image are skipped. Returns an empty list if the blob is not an image.
+   */
+  List<ImageVariant> createVariants(BlobKey blobKey, int[] widths) throws IOException;
+}
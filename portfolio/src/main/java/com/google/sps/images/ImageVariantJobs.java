@@ -0,0 +1,114 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.images;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreInputStream;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.sps.cache.CommentsVersion;
+import com.google.sps.data.Comment;
+import com.google.sps.data.ImageVariant;
+import com.google.sps.metrics.Metrics;
+import com.google.sps.search.CommentSearchIndex;
+import com.google.sps.store.CommentStoreFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background jobs which create smaller variants of comment images, so pages can load
+ * the image of the size they show. A comment is stored with its full size image first,
+ * the variants are added to it by a task of the default task queue.
+ * Variants are created by the Images service, or by LocalImageResizer if "portfolio.images.resizer"
+ * system property is "local". Widths are set by "portfolio.images.widths"
+ * (comma separated, default "160,320,640").
+ */
+public final class ImageVariantJobs {
+
+  public static final String WORKER_URL = "/comments/images/worker";
+  // where LocalImageResizer variants are served
+  public static final String VARIANT_URL = "/images/variant";
+
+  private static final int[] widths =
+      Arrays.stream(System.getProperty("portfolio.images.widths", "160,320,640").split(","))
+          .mapToInt(width -> Integer.parseInt(width.trim())).sorted().toArray();
+  private static final ImageResizer resizer =
+      createResizer(System.getProperty("portfolio.images.resizer", "images"));
+
+  private static final LongAdder jobs = Metrics.counter("image_variant_jobs_total");
+  private static final LongAdder createdVariants = Metrics.counter("image_variants_created_total");
+  private static final LongAdder jobNanos = Metrics.counter("image_variant_job_nanos_total");
+
+  private ImageVariantJobs() {}
+
+  /* Queues the job which creates variants of the comment image uploaded as blobKey */
+  public static void start(Comment comment, BlobKey blobKey) {
+    QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(WORKER_URL)
+        .param("timestamp", String.valueOf(comment.getTimestamp()))
+        .param("imageurl", comment.getCommentImageUrl())
+        .param("blobkey", blobKey.getKeyString()));
+  }
+
+  /**
+   * Creates the variants and adds them to the comment. Can be run again after a failure,
+   * variants are overwritten. Throws IOException if the image can't be read.
+   */
+  public static void run(long timestamp, String imageUrl, BlobKey blobKey) throws IOException {
+    long start = System.nanoTime();
+    List<ImageVariant> variants = resizer.createVariants(blobKey, widths);
+    if (!variants.isEmpty()) {
+      CommentStoreFactory.getCommentStore().setImageVariants(timestamp, imageUrl, variants);
+      CommentSearchIndex.getInstance().updateImageVariants(timestamp, imageUrl, variants);
+      // cached pages don't have the variants yet
+      CommentsVersion.bump();
+    }
+    jobs.increment();
+    createdVariants.add(variants.size());
+    jobNanos.add(System.nanoTime() - start);
+  }
+
+  /* Returns JPEG of the variant created by LocalImageResizer, or null if there is no such variant */
+  public static byte[] getLocalVariant(String name) {
+    return LocalImageResizer.getVariant(name);
+  }
+
+  /* reads the whole blob, uploaded images are small enough to keep in memory */
+  static byte[] readBlob(BlobKey blobKey) throws IOException {
+    try (InputStream in = new BlobstoreInputStream(blobKey)) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int length;
+      while ((length = in.read(buffer)) > 0) {
+        bytes.write(buffer, 0, length);
+      }
+      return bytes.toByteArray();
+    }
+  }
+
+  private static ImageResizer createResizer(String name) {
+    switch (name) {
+      case "images":
+        return new ServingUrlImageResizer();
+      case "local":
+        return new LocalImageResizer();
+      default:
+        throw new IllegalArgumentException("Unknown portfolio.images.resizer: " + name);
+    }
+  }
+}
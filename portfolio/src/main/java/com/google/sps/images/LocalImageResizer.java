@@ -0,0 +1,137 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.images;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.sps.data.ImageVariant;
+import com.google.sps.store.InstrumentedDatastore;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * ImageResizer which resizes images itself with ImageIO, a stand-in for the Images service
+ * where it is not available. Variants are JPEG files kept in "ImageVariant" entities
+ * and served by ImageVariantServlet.
+ */
+final class LocalImageResizer implements ImageResizer {
+  private static final Logger log = Logger.getLogger(LocalImageResizer.class.getName());
+
+  private static final String VARIANT_KIND = "ImageVariant";
+  private static final float JPEG_QUALITY = 0.8f;
+  // datastore entities are limited to 1 MiB
+  private static final int MAX_VARIANT_BYTES = 1000 * 1000;
+
+  @Override
+  public List<ImageVariant> createVariants(BlobKey blobKey, int[] widths) throws IOException {
+    BufferedImage image =
+        ImageIO.read(new ByteArrayInputStream(ImageVariantJobs.readBlob(blobKey)));
+    if (image == null) {
+      // not an image
+      return Collections.emptyList();
+    }
+
+    List<ImageVariant> variants = new ArrayList<>();
+    for (int width : widths) {
+      if (width >= image.getWidth()) {
+        continue;
+      }
+      int height =
+          Math.max(1, (int) Math.round((double) width * image.getHeight() / image.getWidth()));
+      byte[] jpeg = toJpeg(resize(image, width, height));
+      if (jpeg.length > MAX_VARIANT_BYTES) {
+        log.warning("Variant " + width + " of " + blobKey.getKeyString() + " is too big to keep");
+        continue;
+      }
+
+      // the name never gets other content, so the variant can be cached forever
+      String name = blobKey.getKeyString() + "-" + width;
+      Entity variant = new Entity(VARIANT_KIND, name);
+      variant.setUnindexedProperty("data", new Blob(jpeg));
+      InstrumentedDatastore.getDatastoreService().put(variant);
+      String url = ImageVariantJobs.VARIANT_URL + "?name=" + URLEncoder.encode(name, "UTF-8");
+      variants.add(new ImageVariant(url, width, height));
+    }
+    return variants;
+  }
+
+  /* Returns JPEG of the variant with given name, or null if there is no such variant */
+  static byte[] getVariant(String name) {
+    try {
+      Entity variant = InstrumentedDatastore.getDatastoreService()
+          .get(KeyFactory.createKey(VARIANT_KIND, name));
+      return ((Blob) variant.getProperty("data")).getBytes();
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Scales the image down in steps of at most a half, which keeps details
+   * that one bilinear step would skip. The result has no transparency, as JPEG.
+   */
+  static BufferedImage resize(BufferedImage image, int width, int height) {
+    BufferedImage current = image;
+    int currentWidth = image.getWidth();
+    int currentHeight = image.getHeight();
+    do {
+      currentWidth = Math.max(width, currentWidth / 2);
+      currentHeight = Math.max(height, currentHeight / 2);
+      BufferedImage scaled =
+          new BufferedImage(currentWidth, currentHeight, BufferedImage.TYPE_INT_RGB);
+      Graphics2D graphics = scaled.createGraphics();
+      graphics.setRenderingHint(
+          RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      // transparent pixels become white instead of black
+      graphics.drawImage(current, 0, 0, currentWidth, currentHeight, Color.WHITE, null);
+      graphics.dispose();
+      current = scaled;
+    } while (currentWidth > width || currentHeight > height);
+    return current;
+  }
+
+  static byte[] toJpeg(BufferedImage image) throws IOException {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+      writer.setOutput(out);
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(JPEG_QUALITY);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,79 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.images;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.api.images.ServingUrlOptions;
+import com.google.sps.data.ImageVariant;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ImageResizer on top of the Images service. Variants are serving urls with a size,
+ * the image serving infrastructure resizes and recompresses the image when it is requested.
+ */
+final class ServingUrlImageResizer implements ImageResizer {
+  // the largest size serving urls support
+  private static final int MAX_SERVING_SIZE = 1600;
+
+  private final ImagesService imagesService = ImagesServiceFactory.getImagesService();
+
+  @Override
+  public List<ImageVariant> createVariants(BlobKey blobKey, int[] widths) throws IOException {
+    // dimensions are read from the image data, images made from a blob key don't have them
+    Image image = ImagesServiceFactory.makeImage(ImageVariantJobs.readBlob(blobKey));
+    int imageWidth;
+    int imageHeight;
+    try {
+      imageWidth = image.getWidth();
+      imageHeight = image.getHeight();
+    } catch (IllegalArgumentException e) {
+      // not an image
+      return Collections.emptyList();
+    }
+
+    List<ImageVariant> variants = new ArrayList<>();
+    for (int width : widths) {
+      if (width >= imageWidth) {
+        continue;
+      }
+      // the size of a serving url is the longest side
+      int height = (int) Math.round((double) width * imageHeight / imageWidth);
+      int size = Math.max(width, height);
+      if (size > MAX_SERVING_SIZE) {
+        continue;
+      }
+      ServingUrlOptions options = ServingUrlOptions.Builder.withBlobKey(blobKey).imageSize(size);
+      variants.add(new ImageVariant(toPath(imagesService.getServingUrl(options)), width, height));
+    }
+    return variants;
+  }
+
+  /* serving urls are used without the host, as DataServlet does, so they work on the dev server */
+  private static String toPath(String servingUrl) {
+    try {
+      return new URL(servingUrl).getPath();
+    } catch (MalformedURLException e) {
+      return servingUrl;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.metrics;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations with logarithmic buckets. Bucket i counts durations
+ * up to 2^(i + FIRST_BUCKET_SHIFT) nanoseconds, i.e. from about 131 microseconds to 17 seconds,
+ * the last bucket counts everything longer. Recording is a few LongAdder increments.
+ */
+public final class Histogram {
+  private static final int FIRST_BUCKET_SHIFT = 17;
+  private static final int BOUNDED_BUCKETS = 18;
+
+  // not cumulative, buckets[BOUNDED_BUCKETS] is +Inf
+  private final LongAdder[] buckets = new LongAdder[BOUNDED_BUCKETS + 1];
+  private final LongAdder sumNanos = new LongAdder();
+
+  Histogram() {
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  public void record(long nanos) {
+    long value = Math.max(nanos, 1);
+    // number of bits of (value - 1) above the first bucket bound is the bucket index
+    int bucket = 64 - Long.numberOfLeadingZeros((value - 1) >>> FIRST_BUCKET_SHIFT);
+    buckets[Math.min(bucket, BOUNDED_BUCKETS)].increment();
+    sumNanos.add(value);
+  }
+
+  /* Writes Prometheus histogram lines, labels are "" or like "path=\"/comments\"" */
+  void writeTo(PrintWriter writer, String name, String labels) {
+    String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+    long count = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      count += buckets[i].sum();
+      String bound = i < BOUNDED_BUCKETS
+          ? Double.toString((1L << (i + FIRST_BUCKET_SHIFT)) / 1e9) : "+Inf";
+      writer.println(name + "_bucket" + prefix + "le=\"" + bound + "\"} " + count);
+    }
+    String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+    writer.println(name + "_sum" + suffix + " " + sumNanos.sum() / 1e9);
+    writer.println(name + "_count" + suffix + " " + count);
+  }
+}
@@ -0,0 +1,75 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.metrics;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of the instance metrics which are shown by MetricsServlet.
+ * Names follow Prometheus conventions and may contain labels, e.g. cache_hits_total{tier="local"}.
+ * Histograms of the same name with different labels are shown together.
+ */
+public final class Metrics {
+
+  private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+  private static final Map<String, DoubleSupplier> gauges = new ConcurrentSkipListMap<>();
+  private static final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+  private Metrics() {}
+
+  /* Returns counter with given name, creates it if there is no such counter yet */
+  public static LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, k -> new LongAdder());
+  }
+
+  /* Registers gauge which value is read every time metrics are shown */
+  public static void gauge(String name, DoubleSupplier value) {
+    gauges.put(name, value);
+  }
+
+  /* Returns histogram with given name, creates it if there is no such histogram yet.
+   * Durations are shown in seconds, so the name should end with _seconds.
+   */
+  public static Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, k -> new Histogram());
+  }
+
+  /* Writes all metrics in Prometheus text format, counters and gauges as "name value" lines */
+  public static void writeTo(PrintWriter writer) {
+    for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+      writer.println(counter.getKey() + " " + counter.getValue().sum());
+    }
+    for (Map.Entry<String, DoubleSupplier> gauge : gauges.entrySet()) {
+      writer.println(gauge.getKey() + " " + gauge.getValue().getAsDouble());
+    }
+    // names are sorted, so histograms with the same name and different labels come together
+    String lastName = null;
+    for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+      String key = histogram.getKey();
+      int labelsStart = key.indexOf('{');
+      String name = labelsStart < 0 ? key : key.substring(0, labelsStart);
+      String labels = labelsStart < 0 ? "" : key.substring(labelsStart + 1, key.length() - 1);
+      if (!name.equals(lastName)) {
+        writer.println("# TYPE " + name + " histogram");
+        lastName = name;
+      }
+      histogram.getValue().writeTo(writer, name, labels);
+    }
+  }
+}
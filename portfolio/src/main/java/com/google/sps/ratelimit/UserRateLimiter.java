@@ -0,0 +1,120 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.ratelimit;
+
+import com.google.sps.metrics.Metrics;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket of every user of this instance: a user gets ratePerMinute tokens a minute,
+ * up to burst of them saved, and every action takes one.
+ * A bucket is one AtomicLong with the time it will be full again (the GCRA form of a token bucket),
+ * so it is taken with a compare-and-set and no locks. Buckets which are full are the same as
+ * missing ones, they are removed once a minute by the request which comes first after that.
+ */
+public final class UserRateLimiter {
+
+  private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  // time to earn one token
+  private final long tokenNanos;
+  // how far ahead of now the full time of a bucket may be, the time to earn burst tokens
+  private final long burstNanos;
+  private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+  private final AtomicLong nextSweepNanos = new AtomicLong(System.nanoTime());
+
+  private final LongAdder allowed;
+  private final LongAdder rejected;
+  private final LongAdder evicted;
+
+  /* name is the label of the limiter metrics */
+  public UserRateLimiter(String name, double ratePerMinute, int burst) {
+    tokenNanos = (long) (TimeUnit.MINUTES.toNanos(1) / ratePerMinute);
+    burstNanos = tokenNanos * burst;
+    String label = "{limiter=\"" + name + "\"}";
+    allowed = Metrics.counter("rate_limit_allowed_total" + label);
+    rejected = Metrics.counter("rate_limit_rejected_total" + label);
+    evicted = Metrics.counter("rate_limit_evicted_buckets_total" + label);
+    Metrics.gauge("rate_limit_buckets" + label, buckets::size);
+  }
+
+  /**
+   * Creates limiter of comment posts configured by system properties, or returns null if posts
+   * are not limited. Properties are "portfolio.ratelimit.postsPerMinute" (default 10,
+   * 0 turns the limit off) and "portfolio.ratelimit.postsBurst" (default 5).
+   */
+  public static UserRateLimiter forPostsFromSystemProperties() {
+    double ratePerMinute =
+        Double.parseDouble(System.getProperty("portfolio.ratelimit.postsPerMinute", "10"));
+    if (ratePerMinute <= 0) {
+      return null;
+    }
+    return new UserRateLimiter(
+        "posts", ratePerMinute, Integer.getInteger("portfolio.ratelimit.postsBurst", 5));
+  }
+
+  /**
+   * Takes a token of the user. Returns 0 if there was one,
+   * otherwise nanoseconds until the user gets it, and the action should be rejected.
+   */
+  public long acquire(String userId) {
+    long now = System.nanoTime();
+    sweepIfDue(now);
+
+    AtomicLong bucket = buckets.get(userId);
+    if (bucket == null) {
+      bucket = buckets.computeIfAbsent(userId, k -> new AtomicLong(now));
+    }
+    while (true) {
+      long fullAt = bucket.get();
+      long newFullAt = Math.max(fullAt, now) + tokenNanos;
+      long wait = newFullAt - now - burstNanos;
+      if (wait > 0) {
+        rejected.increment();
+        return wait;
+      }
+      if (bucket.compareAndSet(fullAt, newFullAt)) {
+        allowed.increment();
+        return 0;
+      }
+    }
+  }
+
+  /* removes full buckets, only one request does it every SWEEP_INTERVAL_NANOS */
+  private void sweepIfDue(long now) {
+    long nextSweep = nextSweepNanos.get();
+    if (now - nextSweep < 0
+        || !nextSweepNanos.compareAndSet(nextSweep, now + SWEEP_INTERVAL_NANOS)) {
+      return;
+    }
+    Iterator<Map.Entry<String, AtomicLong>> entries = buckets.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<String, AtomicLong> entry = entries.next();
+      /* A request which got the bucket before it was removed may still take a token from it,
+       * so the user can get one more token than the limit once. It is not worth a lock.
+       */
+      if (entry.getValue().get() - now <= 0) {
+        entries.remove();
+        evicted.increment();
+      }
+    }
+  }
+}
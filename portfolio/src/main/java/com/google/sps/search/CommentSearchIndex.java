@@ -0,0 +1,853 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.search;
+
+import com.google.sps.cache.CommentsVersion;
+import com.google.sps.data.Comment;
+import com.google.sps.data.CommentsSearchSend;
+import com.google.sps.data.ImageVariant;
+import com.google.sps.metrics.Histogram;
+import com.google.sps.metrics.Metrics;
+import com.google.sps.store.CommentStore;
+import com.google.sps.store.CommentStoreFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-process inverted index over the text and the owner of the comments of CommentStore.
+ * Every instance has its own index. It is read from the store when it is first used,
+ * then DataServlet, CommentDeleteServlet and ImageVariantJobs keep it up to date with changes
+ * made through this instance. Changes made through other instances are read incrementally:
+ * a query starts that if the comments version changed since the last read and
+ * "portfolio.search.refreshMillis" system property millis (default 30000) passed since the last
+ * check, 0 turns it off. Only comments posted since the last read started are read, and deletions
+ * come from the tombstone of the store. Queries are served from the index while it is read.
+ * Queries are words which must all be found in a comment, a word ending with '*' matches
+ * every word it starts. Results are ranked with BM25, newer comments first on equal scores.
+ * Posting lists keep score bounds of their blocks, so blocks which can't beat the worst of
+ * the best results found so far are not decoded.
+ * Queries share a read lock, new comments take the write lock for the time of one insert.
+ */
+public final class CommentSearchIndex {
+  private static final Logger log = Logger.getLogger(CommentSearchIndex.class.getName());
+
+  private static final int MAX_QUERY_WORDS = 10;
+  // a short prefix could match most of the terms, only that many of them are searched
+  private static final int MAX_PREFIX_TERMS = 1000;
+  // usual BM25 parameters: saturation of term frequency and weight of the comment length
+  private static final float K1 = 1.2f;
+  private static final float B = 0.75f;
+  // later words are read with skips if they have that many times more postings than candidates
+  private static final int SKIPPING_RATIO = 8;
+  // scratch arrays kept for queries, each takes 8 bytes per comment
+  private static final int MAX_IDLE_SCRATCH = 8;
+  private static final long REFRESH_MILLIS = Long.getLong("portfolio.search.refreshMillis", 30_000);
+  // comments are read again from that long before the last read, for posts which were in flight
+  private static final long REFRESH_OVERLAP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private static final CommentSearchIndex instance = createInstance();
+
+  /* terms of one query word: a single term, or all terms starting with a prefix */
+  private static final class QueryWord {
+    private final List<PostingList> postings = new ArrayList<>();
+    private long totalPostings;
+  }
+
+  /* per-document arrays of one query, they are pooled as they are as long as the index */
+  private static final class Scratch {
+    private final float[] scores;
+    private final int[] matchedWords;
+    // one bit per document
+    private final long[] documentBits;
+
+    private Scratch(int length) {
+      scores = new float[length];
+      matchedWords = new int[length];
+      documentBits = new long[(length + 63) / 64];
+    }
+  }
+
+  /* BM25 of the query: term weight is idf * (K1 + 1) * frequency / (frequency + length norm) */
+  private static final class Ranking {
+    private final int documents;
+    private final float lengthBase;
+    private final float lengthWeight;
+
+    private Ranking(int documents, long totalLength) {
+      this.documents = documents;
+      lengthBase = K1 * (1 - B);
+      lengthWeight = K1 * B / ((float) totalLength / documents);
+    }
+
+    /* returns idf * (K1 + 1) of the term */
+    private float weight(PostingList postings) {
+      return (float) Math.log(1 + (documents - postings.size() + 0.5)
+          / (postings.size() + 0.5)) * (K1 + 1);
+    }
+
+    /* Returns the score of the term in the document. It grows with the frequency and falls
+     * with the length, so the highest frequency and the shortest length of a block bound it.
+     */
+    private float score(float weight, int frequency, int length) {
+      return weight * frequency / (frequency + lengthBase + lengthWeight * length);
+    }
+  }
+
+  /* the best documents found so far, a heap with the worst of them on top */
+  private static final class TopResults {
+    private final int capacity;
+    private final float[] scores;
+    private final long[] timestamps;
+    private final int[] documents;
+    private int size;
+
+    private TopResults(int capacity) {
+      this.capacity = capacity;
+      scores = new float[capacity];
+      timestamps = new long[capacity];
+      documents = new int[capacity];
+    }
+
+    /* checks if a document with the score and timestamp would be one of the best */
+    private boolean accepts(float score, long timestamp) {
+      return size < capacity || isWorse(scores[0], timestamps[0], score, timestamp);
+    }
+
+    /* adds the document, which must be accepted, in place of the worst one if there is no room */
+    private void add(float score, long timestamp, int document) {
+      if (size == capacity) {
+        siftDownRoot(score, timestamp, document);
+        return;
+      }
+      int index = size++;
+      while (index > 0) {
+        int parent = (index - 1) / 2;
+        if (!isWorse(score, timestamp, scores[parent], timestamps[parent])) {
+          break;
+        }
+        move(parent, index);
+        index = parent;
+      }
+      scores[index] = score;
+      timestamps[index] = timestamp;
+      documents[index] = document;
+    }
+
+    /* returns the documents from the best, empties the heap */
+    private int[] bestFirst() {
+      int[] best = new int[size];
+      for (int i = best.length - 1; i >= 0; i--) {
+        best[i] = documents[0];
+        size--;
+        if (size > 0) {
+          // the last leaf takes the place of the root
+          siftDownRoot(scores[size], timestamps[size], documents[size]);
+        }
+      }
+      return best;
+    }
+
+    /* puts the document in place of the root and moves it down to its place */
+    private void siftDownRoot(float score, long timestamp, int document) {
+      int index = 0;
+      while (true) {
+        int child = 2 * index + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size
+            && isWorse(scores[child + 1], timestamps[child + 1], scores[child], timestamps[child])) {
+          child++;
+        }
+        if (!isWorse(scores[child], timestamps[child], score, timestamp)) {
+          break;
+        }
+        move(child, index);
+        index = child;
+      }
+      scores[index] = score;
+      timestamps[index] = timestamp;
+      documents[index] = document;
+    }
+
+    private void move(int from, int to) {
+      scores[to] = scores[from];
+      timestamps[to] = timestamps[from];
+      documents[to] = documents[from];
+    }
+
+    /* newer comments rank first on equal scores */
+    private static boolean isWorse(float score, long timestamp, float otherScore,
+        long otherTimestamp) {
+      return score != otherScore ? score < otherScore : timestamp < otherTimestamp;
+    }
+  }
+
+  private final CommentStore store;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private volatile boolean built;
+  // comments version read before the store was last read, null if the cache was unavailable
+  private volatile Long indexedVersion;
+  private final AtomicLong lastRefreshCheckMillis = new AtomicLong(System.currentTimeMillis());
+
+  // guarded by lock
+  private NavigableMap<String, PostingList> terms;
+  // comments, their timestamps and lengths in terms by document id, ids are given in the order
+  // of adding. Timestamps are copied, so ranking doesn't read a comment object per candidate
+  private Comment[] comments;
+  private long[] timestamps;
+  private int[] lengths;
+  private int documents;
+  private long totalLength;
+  // documents read from the store when the index was built, from the newest to the oldest
+  private int scannedDocuments;
+  // comments up to that timestamp are deleted from the index
+  private long deletedUpTo;
+  // when the last read from the store started, the next one reads comments posted since then
+  private long lastReadMillis;
+
+  private final BlockingQueue<Scratch> idleScratch = new ArrayBlockingQueue<>(MAX_IDLE_SCRATCH);
+  private final Histogram queryLatency = Metrics.histogram("comment_search_query_duration_seconds");
+  private final LongAdder refreshedComments = Metrics.counter("comment_search_refreshed_total");
+
+  private CommentSearchIndex(CommentStore store) {
+    this.store = store;
+    clear();
+  }
+
+  private static CommentSearchIndex createInstance() {
+    CommentSearchIndex index = new CommentSearchIndex(CommentStoreFactory.getCommentStore());
+    Metrics.gauge("comment_search_index_documents", () -> index.documents);
+    Metrics.gauge("comment_search_index_terms", () -> index.terms.size());
+    return index;
+  }
+
+  /* Returns the index, reads all comments from the store if it is the first call */
+  public static CommentSearchIndex getInstance() {
+    instance.build();
+    return instance;
+  }
+
+  /* Adds the comment which was just added to the store */
+  public void add(Comment comment) {
+    lock.writeLock().lock();
+    try {
+      // a comment stored while the index was built may have been read from the store already
+      if (comment.getTimestamp() > deletedUpTo && !isScanned(comment)) {
+        addDocument(comment);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /* Removes comments with timestamp not greater than given one, all of them are rebuilt */
+  public void deleteUpTo(long timestamp) {
+    lock.writeLock().lock();
+    try {
+      removeUpTo(timestamp);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /* Replaces the comments with given timestamp and image by ones with the variants */
+  public void updateImageVariants(long timestamp, String imageUrl, List<ImageVariant> variants) {
+    lock.writeLock().lock();
+    try {
+      // a variant job is rare, one pass over the timestamps is cheaper than keeping a map
+      for (int document = 0; document < documents; document++) {
+        if (timestamps[document] == timestamp
+            && imageUrl.equals(comments[document].getCommentImageUrl())) {
+          comments[document] = comments[document].withImageVariants(variants);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns up to maxResults comments which match the query, the best first,
+   * and the number of all matching comments.
+   */
+  public CommentsSearchSend search(String query, int maxResults) {
+    refreshIfStale();
+    long start = System.nanoTime();
+    lock.readLock().lock();
+    try {
+      return find(parse(query), maxResults);
+    } finally {
+      lock.readLock().unlock();
+      queryLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  private void build() {
+    if (built) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      if (built) {
+        return;
+      }
+      long start = System.nanoTime();
+      indexedVersion = CommentsVersion.current();
+      lastReadMillis = System.currentTimeMillis();
+      deletedUpTo = store.getTombstone();
+      store.forEachComment(this::addDocument);
+      scannedDocuments = documents;
+      built = true;
+      log.info("Indexed " + documents + " comments in "
+          + (System.nanoTime() - start) / 1_000_000 + " ms");
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /* Reads the changes of the store if the comments changed, only one caller in REFRESH_MILLIS
+   * checks it
+   */
+  private void refreshIfStale() {
+    long now = System.currentTimeMillis();
+    long lastCheck = lastRefreshCheckMillis.get();
+    if (REFRESH_MILLIS <= 0 || now - lastCheck < REFRESH_MILLIS
+        || !lastRefreshCheckMillis.compareAndSet(lastCheck, now)) {
+      return;
+    }
+    Long version = CommentsVersion.current();
+    if (version == null || version.equals(indexedVersion)) {
+      return;
+    }
+    refresh(version);
+  }
+
+  /**
+   * Reads the comments posted since the last read started, less REFRESH_OVERLAP_MILLIS for posts
+   * which were stored later than they were timed, and the tombstone of the store. They are read
+   * without the lock, so the cost of a refresh follows the posts, not the size of the store.
+   * Read comments which are indexed already, e.g. posted through this instance, replace them,
+   * as they may have image variants by now.
+   */
+  private void refresh(Long version) {
+    long since;
+    lock.readLock().lock();
+    try {
+      since = lastReadMillis - REFRESH_OVERLAP_MILLIS;
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    long start = System.currentTimeMillis();
+    long tombstone;
+    List<Comment> read = new ArrayList<>();
+    try {
+      tombstone = store.getTombstone();
+      store.forEachCommentNewerThan(Math.max(since, tombstone), read::add);
+    } catch (RuntimeException e) {
+      // the query is answered from the index as it is, the next check reads the store again
+      log.log(Level.WARNING, "Could not read new comments for the search index", e);
+      return;
+    }
+
+    lock.writeLock().lock();
+    try {
+      if (tombstone > deletedUpTo) {
+        removeUpTo(tombstone);
+      }
+      // indexed documents which the read comments can be, by timestamp
+      Map<Long, List<Integer>> recent = new HashMap<>();
+      for (int document = 0; document < documents; document++) {
+        if (timestamps[document] > since) {
+          recent.computeIfAbsent(timestamps[document], k -> new ArrayList<>()).add(document);
+        }
+      }
+      int added = 0;
+      for (Comment comment : read) {
+        // deleted through this instance meanwhile
+        if (comment.getTimestamp() <= deletedUpTo) {
+          continue;
+        }
+        int document = takeSame(recent.get(comment.getTimestamp()), comment);
+        if (document >= 0) {
+          comments[document] = comment;
+        } else {
+          addDocument(comment);
+          added++;
+        }
+      }
+      lastReadMillis = start;
+      indexedVersion = version;
+      refreshedComments.add(added);
+      if (added > 0) {
+        log.info("Added " + added + " comments of other instances in "
+            + (System.currentTimeMillis() - start) + " ms");
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /* Removes the document of the same comment from the list and returns it, or returns -1 */
+  private int takeSame(List<Integer> candidates, Comment comment) {
+    if (candidates == null) {
+      return -1;
+    }
+    for (int i = 0; i < candidates.size(); i++) {
+      if (isSame(comments[candidates.get(i)], comment)) {
+        return candidates.remove(i);
+      }
+    }
+    return -1;
+  }
+
+  /* Removes comments with timestamp not greater than given one, all of them are rebuilt */
+  private void removeUpTo(long timestamp) {
+    Comment[] oldComments = comments;
+    int oldDocuments = documents;
+    int oldScanned = scannedDocuments;
+    clear();
+    for (int document = 0; document < oldDocuments; document++) {
+      if (oldComments[document].getTimestamp() > timestamp) {
+        addDocument(oldComments[document]);
+      }
+      if (document == oldScanned - 1) {
+        scannedDocuments = documents;
+      }
+    }
+    deletedUpTo = Math.max(deletedUpTo, timestamp);
+  }
+
+  private void clear() {
+    terms = new TreeMap<>();
+    comments = new Comment[1024];
+    timestamps = new long[1024];
+    lengths = new int[1024];
+    documents = 0;
+    totalLength = 0;
+    scannedDocuments = 0;
+  }
+
+  private void addDocument(Comment comment) {
+    Map<String, Integer> frequencies = new HashMap<>();
+    int length = 0;
+    for (String text : new String[] {comment.getCommentText(), comment.getCommentOwner()}) {
+      for (String term : tokenize(text)) {
+        frequencies.merge(term, 1, Integer::sum);
+        length++;
+      }
+    }
+
+    if (documents == comments.length) {
+      comments = Arrays.copyOf(comments, documents * 2);
+      timestamps = Arrays.copyOf(timestamps, documents * 2);
+      lengths = Arrays.copyOf(lengths, documents * 2);
+    }
+    int document = documents++;
+    comments[document] = comment;
+    timestamps[document] = comment.getTimestamp();
+    lengths[document] = length;
+    totalLength += length;
+    for (Map.Entry<String, Integer> frequency : frequencies.entrySet()) {
+      terms.computeIfAbsent(frequency.getKey(), k -> new PostingList())
+          .add(document, frequency.getValue(), length, comment.getTimestamp());
+    }
+  }
+
+  /* checks if the comment was read from the store, scanned comments are sorted newest first */
+  private boolean isScanned(Comment comment) {
+    int low = 0;
+    int high = scannedDocuments;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (timestamps[middle] > comment.getTimestamp()) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    for (int document = low; document < scannedDocuments
+        && timestamps[document] == comment.getTimestamp(); document++) {
+      if (isSame(comments[document], comment)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /* comments have no ids, a comment with the same timestamp, text, owner and image is the same */
+  private static boolean isSame(Comment indexed, Comment comment) {
+    return indexed.getTimestamp() == comment.getTimestamp()
+        && Objects.equals(indexed.getCommentText(), comment.getCommentText())
+        && Objects.equals(indexed.getCommentOwner(), comment.getCommentOwner())
+        && Objects.equals(indexed.getCommentImageUrl(), comment.getCommentImageUrl());
+  }
+
+  /* returns terms of every query word, or null if some word matches nothing */
+  private List<QueryWord> parse(String query) {
+    List<QueryWord> words = new ArrayList<>();
+    for (String part : query.trim().split("\\s+")) {
+      List<String> partTerms = tokenize(part);
+      for (int i = 0; i < partTerms.size() && words.size() < MAX_QUERY_WORDS; i++) {
+        String term = partTerms.get(i);
+        QueryWord word = new QueryWord();
+        if (i == partTerms.size() - 1 && part.endsWith("*")) {
+          for (PostingList postings : terms.subMap(term, true, term + Character.MAX_VALUE, false)
+              .values()) {
+            if (word.postings.size() == MAX_PREFIX_TERMS) {
+              break;
+            }
+            word.postings.add(postings);
+            word.totalPostings += postings.size();
+          }
+        } else {
+          PostingList postings = terms.get(term);
+          if (postings != null) {
+            word.postings.add(postings);
+            word.totalPostings = postings.size();
+          }
+        }
+        if (word.postings.isEmpty()) {
+          return null;
+        }
+        words.add(word);
+      }
+    }
+    return words;
+  }
+
+  /**
+   * Finds the best results with the cheapest way the query allows. The number of matches is
+   * always exact, so only the scoring of the documents is skipped, unless the number is known
+   * without reading them:
+   * - one word of one term matches every document of the term. Only the blocks which can beat
+   *   the worst of the best results are read, the most promising first.
+   * - one word of several terms, e.g. a prefix, is counted with one bit per document. If no
+   *   document has two of the terms, the blocks of all terms are read as for one term.
+   * - words of one term each are intersected document by document, from the rarest word.
+   *   Documents which can't beat the worst of the best results by the bounds of their blocks
+   *   are counted without scoring them.
+   * - other queries are scored word by word into per-document scores.
+   */
+  private CommentsSearchSend find(List<QueryWord> words, int maxResults) {
+    if (words == null || words.isEmpty() || maxResults == 0) {
+      return new CommentsSearchSend(new ArrayList<>(), 0);
+    }
+    words.sort(Comparator.comparingLong(word -> word.totalPostings));
+
+    Ranking ranking = new Ranking(documents, totalLength);
+    TopResults best = new TopResults(maxResults);
+    int matches = -1;
+    boolean singleTerms = words.stream().allMatch(word -> word.postings.size() == 1);
+    if (words.size() == 1 && singleTerms) {
+      matches = words.get(0).postings.get(0).size();
+      findInBlocks(words.get(0).postings, ranking, best);
+    } else if (words.size() == 1) {
+      matches = countDisjoint(words.get(0).postings);
+      if (matches >= 0) {
+        findInBlocks(words.get(0).postings, ranking, best);
+      }
+    } else if (singleTerms) {
+      matches = findIntersection(words, ranking, best);
+    }
+    if (matches < 0) {
+      matches = findByScores(words, ranking, best);
+    }
+
+    int[] bestDocuments = best.bestFirst();
+    ArrayList<Comment> results = new ArrayList<>(bestDocuments.length);
+    for (int document : bestDocuments) {
+      results.add(comments[document]);
+    }
+    return new CommentsSearchSend(results, matches);
+  }
+
+  /**
+   * Adds the best documents of the posting lists to best. No document may be in two of them.
+   * Blocks are read from the highest score bound, newer first on equal bounds, until the next
+   * block can't beat the worst of the best results.
+   */
+  private void findInBlocks(List<PostingList> postings, Ranking ranking, TopResults best) {
+    float[] weights = new float[postings.size()];
+    int blocks = 0;
+    for (int i = 0; i < postings.size(); i++) {
+      weights[i] = ranking.weight(postings.get(i));
+      blocks += postings.get(i).blocks();
+    }
+    // every block by its list and its index in the list
+    int[] blockLists = new int[blocks];
+    int[] blockIndexes = new int[blocks];
+    float[] bounds = new float[blocks];
+    long[] newest = new long[blocks];
+    int block = 0;
+    for (int i = 0; i < postings.size(); i++) {
+      PostingList list = postings.get(i);
+      for (int index = 0; index < list.blocks(); index++) {
+        blockLists[block] = i;
+        blockIndexes[block] = index;
+        bounds[block] = ranking.score(weights[i], list.maxFrequency(index), list.minLength(index));
+        newest[block] = list.maxTimestamp(index);
+        block++;
+      }
+    }
+
+    // the most promising block is on top, so it is read first
+    PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(1, blocks),
+        (first, second) -> bounds[first] != bounds[second]
+            ? Float.compare(bounds[second], bounds[first])
+            : Long.compare(newest[second], newest[first]));
+    for (block = 0; block < blocks; block++) {
+      queue.add(block);
+    }
+    PostingList.Reader[] readers = new PostingList.Reader[postings.size()];
+    while (!queue.isEmpty()) {
+      block = queue.poll();
+      // the other blocks are not better than this one
+      if (!best.accepts(bounds[block], newest[block])) {
+        break;
+      }
+      int list = blockLists[block];
+      if (readers[list] == null) {
+        readers[list] = postings.get(list).reader();
+      }
+      PostingList.Reader reader = readers[list];
+      reader.seekBlock(blockIndexes[block]);
+      for (int i = postings.get(list).blockSize(blockIndexes[block]); i > 0; i--) {
+        reader.next();
+        int document = reader.document();
+        float score = ranking.score(weights[list], reader.frequency(), lengths[document]);
+        if (best.accepts(score, timestamps[document])) {
+          best.add(score, timestamps[document], document);
+        }
+      }
+    }
+  }
+
+  /* Returns the number of documents in the posting lists, or -1 if a document is in two of them */
+  private int countDisjoint(List<PostingList> postings) {
+    Scratch scratch = borrowScratch();
+    long[] bits = scratch.documentBits;
+    int count = 0;
+    try {
+      for (PostingList list : postings) {
+        PostingList.Reader reader = list.reader();
+        while (reader.next()) {
+          int document = reader.document();
+          long bit = 1L << document;
+          if ((bits[document >>> 6] & bit) != 0) {
+            return -1;
+          }
+          bits[document >>> 6] |= bit;
+          count++;
+        }
+      }
+      return count;
+    } finally {
+      Arrays.fill(bits, 0, (documents + 63) / 64, 0);
+      idleScratch.offer(scratch);
+    }
+  }
+
+  /**
+   * Intersects the posting lists document by document, from the rarest word, adds the best
+   * documents to best and returns the number of matches. A match is scored only if the bounds
+   * of the blocks it is in can beat the worst of the best results.
+   */
+  private int findIntersection(List<QueryWord> words, Ranking ranking, TopResults best) {
+    int wordsNumber = words.size();
+    PostingList[] postings = new PostingList[wordsNumber];
+    PostingList.Reader[] readers = new PostingList.Reader[wordsNumber];
+    float[] weights = new float[wordsNumber];
+    // bound of the current block of every reader, computed again when the reader enters a block
+    int[] boundBlocks = new int[wordsNumber];
+    float[] bounds = new float[wordsNumber];
+    for (int i = 0; i < wordsNumber; i++) {
+      postings[i] = words.get(i).postings.get(0);
+      readers[i] = postings[i].reader();
+      weights[i] = ranking.weight(postings[i]);
+      boundBlocks[i] = -1;
+    }
+
+    int matches = 0;
+    PostingList.Reader lead = readers[0];
+    candidates:
+    while (lead.next()) {
+      int document = lead.document();
+      for (int i = 1; i < wordsNumber; i++) {
+        if (!readers[i].advance(document)) {
+          break candidates;
+        }
+        if (readers[i].document() != document) {
+          // the next candidate can't be before the document this word is at
+          if (!lead.advance(readers[i].document())) {
+            break candidates;
+          }
+          document = lead.document();
+          i = 0;
+        }
+      }
+      matches++;
+
+      float bound = 0;
+      for (int i = 0; i < wordsNumber; i++) {
+        int block = readers[i].block();
+        if (block != boundBlocks[i]) {
+          boundBlocks[i] = block;
+          bounds[i] = ranking.score(weights[i], postings[i].maxFrequency(block),
+              postings[i].minLength(block));
+        }
+        bound += bounds[i];
+      }
+      if (!best.accepts(bound, timestamps[document])) {
+        continue;
+      }
+      float score = 0;
+      for (int i = 0; i < wordsNumber; i++) {
+        score += ranking.score(weights[i], readers[i].frequency(), lengths[document]);
+      }
+      if (best.accepts(score, timestamps[document])) {
+        best.add(score, timestamps[document], document);
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Scores documents word by word, the rarest word first. A document is counted for a word
+   * only if it matched all words before, so only documents of the rarest word are candidates.
+   * Posting lists of common words are read only at the candidates, with skips.
+   * Adds the best documents to best and returns the number of matches.
+   */
+  private int findByScores(List<QueryWord> words, Ranking ranking, TopResults best) {
+    Scratch scratch = borrowScratch();
+    float[] scores = scratch.scores;
+    // number of words the document matched, all of the words before the current one or less
+    int[] matchedWords = scratch.matchedWords;
+    int[] candidates = new int[(int) Math.min(words.get(0).totalPostings, documents)];
+    int candidatesNumber = 0;
+    boolean candidatesSorted = words.get(0).postings.size() == 1;
+
+    try {
+      for (int wordIndex = 0; wordIndex < words.size(); wordIndex++) {
+        for (PostingList postings : words.get(wordIndex).postings) {
+          float weight = ranking.weight(postings);
+          PostingList.Reader reader = postings.reader();
+
+          if (wordIndex > 0 && candidatesNumber < postings.size() / SKIPPING_RATIO) {
+            // few candidates are left, the postings between them are skipped
+            if (!candidatesSorted) {
+              Arrays.sort(candidates, 0, candidatesNumber);
+              candidatesSorted = true;
+            }
+            for (int i = 0; i < candidatesNumber; i++) {
+              int document = candidates[i];
+              if (matchedWords[document] < wordIndex) {
+                continue;
+              }
+              if (!reader.advance(document)) {
+                break;
+              }
+              if (reader.document() == document) {
+                matchedWords[document] = wordIndex + 1;
+                scores[document] += ranking.score(weight, reader.frequency(), lengths[document]);
+              }
+            }
+            continue;
+          }
+
+          while (reader.next()) {
+            int document = reader.document();
+            if (matchedWords[document] == wordIndex) {
+              matchedWords[document] = wordIndex + 1;
+              if (wordIndex == 0) {
+                candidates[candidatesNumber++] = document;
+              }
+            } else if (matchedWords[document] != wordIndex + 1) {
+              continue;
+            }
+            scores[document] += ranking.score(weight, reader.frequency(), lengths[document]);
+          }
+        }
+      }
+
+      int matches = 0;
+      for (int i = 0; i < candidatesNumber; i++) {
+        int document = candidates[i];
+        if (matchedWords[document] != words.size()) {
+          continue;
+        }
+        matches++;
+        if (best.accepts(scores[document], timestamps[document])) {
+          best.add(scores[document], timestamps[document], document);
+        }
+      }
+      return matches;
+    } finally {
+      // only candidates were written to
+      for (int i = 0; i < candidatesNumber; i++) {
+        scores[candidates[i]] = 0;
+        matchedWords[candidates[i]] = 0;
+      }
+      idleScratch.offer(scratch);
+    }
+  }
+
+  /* returns zeroed scratch arrays for all documents */
+  private Scratch borrowScratch() {
+    Scratch scratch = idleScratch.poll();
+    if (scratch == null || scratch.scores.length < documents) {
+      scratch = new Scratch(comments.length);
+    }
+    return scratch;
+  }
+
+  /* splits text into lower case words of letters and digits */
+  static List<String> tokenize(String text) {
+    List<String> tokens = new ArrayList<>();
+    if (text == null) {
+      return tokens;
+    }
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (inWord && start < 0) {
+        start = i;
+      } else if (!inWord && start >= 0) {
+        tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+        start = -1;
+      }
+    }
+    return tokens;
+  }
+}
@@ -0,0 +1,200 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.search;
+
+import java.util.Arrays;
+
+/**
+ * Documents which contain one term, in increasing order of document ids.
+ * Every posting is the gap from the previous document id and the number of times the term
+ * occurs in the document, both as varints, so most postings take two bytes.
+ * Every SKIP_INTERVAL postings the position is remembered, so readers can jump over
+ * the postings before a document without decoding them.
+ * Postings between two skips are a block. For every block the highest frequency, the shortest
+ * document and the newest timestamp are kept, so a block which can't make the best results
+ * is skipped without decoding it.
+ * Is not thread-safe, CommentSearchIndex guards it.
+ */
+final class PostingList {
+  private static final int SKIP_INTERVAL = 64;
+
+  /* reads postings one by one: next() moves to the next posting */
+  final class Reader {
+    private int position;
+    private int document = -1;
+    private int frequency;
+    private int nextSkip;
+    // postings before the current position
+    private int read;
+
+    /* moves to the next posting, returns false if there are no more postings */
+    boolean next() {
+      if (position >= length) {
+        return false;
+      }
+      document += readVarint();
+      frequency = readVarint();
+      read++;
+      return true;
+    }
+
+    /* Moves before the first posting of the block, so next() moves to it */
+    void seekBlock(int block) {
+      position = block == 0 ? 0 : skipPositions[block - 1];
+      document = block == 0 ? -1 : skipDocuments[block - 1];
+      read = block * SKIP_INTERVAL;
+      nextSkip = block;
+    }
+
+    /* Returns the block of the current posting */
+    int block() {
+      return (read - 1) / SKIP_INTERVAL;
+    }
+
+    /**
+     * Moves to the first posting of a document not less than target, stays at the current posting
+     * if its document is not less. Returns false if there is no such posting.
+     */
+    boolean advance(int target) {
+      while (nextSkip < skips && skipDocuments[nextSkip] < target) {
+        if (skipPositions[nextSkip] > position) {
+          position = skipPositions[nextSkip];
+          document = skipDocuments[nextSkip];
+          read = (nextSkip + 1) * SKIP_INTERVAL;
+        }
+        nextSkip++;
+      }
+      while (document < target) {
+        if (!next()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    int document() {
+      return document;
+    }
+
+    int frequency() {
+      return frequency;
+    }
+
+    private int readVarint() {
+      int value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = bytes[position++];
+        value |= (b & 0x7f) << shift;
+        shift += 7;
+      } while (b < 0);
+      return value;
+    }
+  }
+
+  private byte[] bytes = new byte[4];
+  private int length;
+  private int size;
+  private int lastDocument = -1;
+  // document before every SKIP_INTERVAL-th posting and the position of that posting
+  private int[] skipDocuments = new int[0];
+  private int[] skipPositions = new int[0];
+  private int skips;
+  // by block: the highest frequency, the shortest document length and the newest timestamp
+  private int[] maxFrequencies = new int[1];
+  private int[] minLengths = new int[1];
+  private long[] maxTimestamps = new long[1];
+
+  /* Adds the posting, document must be greater than the documents added before.
+   * Length and timestamp of the document are only kept as the bounds of its block.
+   */
+  void add(int document, int frequency, int documentLength, long timestamp) {
+    int block = size / SKIP_INTERVAL;
+    if (size > 0 && size % SKIP_INTERVAL == 0) {
+      if (skips == skipDocuments.length) {
+        skipDocuments = Arrays.copyOf(skipDocuments, Math.max(4, skips * 2));
+        skipPositions = Arrays.copyOf(skipPositions, Math.max(4, skips * 2));
+      }
+      skipDocuments[skips] = lastDocument;
+      skipPositions[skips] = length;
+      skips++;
+    }
+    if (block == maxFrequencies.length) {
+      maxFrequencies = Arrays.copyOf(maxFrequencies, block * 2);
+      minLengths = Arrays.copyOf(minLengths, block * 2);
+      maxTimestamps = Arrays.copyOf(maxTimestamps, block * 2);
+    }
+    if (size % SKIP_INTERVAL == 0) {
+      maxFrequencies[block] = frequency;
+      minLengths[block] = documentLength;
+      maxTimestamps[block] = timestamp;
+    } else {
+      maxFrequencies[block] = Math.max(maxFrequencies[block], frequency);
+      minLengths[block] = Math.min(minLengths[block], documentLength);
+      maxTimestamps[block] = Math.max(maxTimestamps[block], timestamp);
+    }
+    writeVarint(document - lastDocument);
+    writeVarint(frequency);
+    lastDocument = document;
+    size++;
+  }
+
+  /* Returns the number of blocks */
+  int blocks() {
+    return (size + SKIP_INTERVAL - 1) / SKIP_INTERVAL;
+  }
+
+  /* Returns the number of postings in the block */
+  int blockSize(int block) {
+    return Math.min(SKIP_INTERVAL, size - block * SKIP_INTERVAL);
+  }
+
+  /* Returns the highest frequency in the block */
+  int maxFrequency(int block) {
+    return maxFrequencies[block];
+  }
+
+  /* Returns the length of the shortest document in the block */
+  int minLength(int block) {
+    return minLengths[block];
+  }
+
+  /* Returns the newest timestamp in the block */
+  long maxTimestamp(int block) {
+    return maxTimestamps[block];
+  }
+
+  /* Returns the number of documents with the term */
+  int size() {
+    return size;
+  }
+
+  Reader reader() {
+    return new Reader();
+  }
+
+  private void writeVarint(int value) {
+    // a varint of an int takes up to 5 bytes
+    if (length + 5 > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 5));
+    }
+    while ((value & ~0x7f) != 0) {
+      bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    bytes[length++] = (byte) value;
+  }
+}
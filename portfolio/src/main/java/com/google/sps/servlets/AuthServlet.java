@@ -43,6 +43,9 @@ import java.util.List;
 /* Servlet for authentification */
 @WebServlet("/auth")
 public class AuthServlet extends HttpServlet {
+    // the servlet serves concurrent requests, so it only keeps thread-safe shared objects
+    private static final Gson gson = new Gson();
+    private static final UserService userService = UserServiceFactory.getUserService();
 
     /* Expects nothing.
      * Returns AuthSend json object which consist of
@@ -51,12 +54,20 @@ public class AuthServlet extends HttpServlet {
      */
     @Override
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // convert auth status to json
+        String json = gson.toJson(getAuth());
+
+        // send response
+        response.setContentType("application/json");
+        response.getWriter().println(json);
+    }
+
+    /* Returns login status of the user with login or logout url. It is used by BootstrapServlet too */
+    static AuthSend getAuth() {
         // initialize variables to send them in response
         String url;
         Boolean isLoggedIn;
 
-        UserService userService = UserServiceFactory.getUserService();
-
         // set url and isLoggedIn vars
         if (userService.isUserLoggedIn()) {
             url = userService.createLogoutURL("/");
@@ -65,16 +76,8 @@ public class AuthServlet extends HttpServlet {
             url = userService.createLoginURL("/");
             isLoggedIn = false;
         }
-        
-        // create object to send
-        AuthSend responseObj = new AuthSend(isLoggedIn, url);
-
-        // convert it to json
-        Gson gson = new Gson();
-        String json = gson.toJson(responseObj);
 
-        // send response
-        response.setContentType("application/json");
-        response.getWriter().println(json);
+        // create object to send
+        return new AuthSend(isLoggedIn, url);
     }
 }
@@ -14,8 +14,7 @@
 
 package com.google.sps.servlets;
 
-import com.google.appengine.api.blobstore.BlobstoreService;
-import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.sps.upload.UploadUrlPool;
 import java.io.IOException;
 import java.io.PrintWriter;
 import javax.servlet.annotation.WebServlet;
@@ -34,7 +33,9 @@ import java.util.logging.Logger;
  */
 @WebServlet("/blobstore-upload-url")
 public class BlobstoreUploadServlet extends HttpServlet {
-    static Logger log = Logger.getLogger(BlobstoreUploadServlet.class.getName());
+    private static final Logger log = Logger.getLogger(BlobstoreUploadServlet.class.getName());
+    // urls are created ahead of requests for the usual forward urls
+    private static final UploadUrlPool uploadUrlPool = UploadUrlPool.getInstance();
 
     /**
      * Expects forwardurl parameter - url to handle post request.
@@ -50,12 +51,11 @@ public class BlobstoreUploadServlet extends HttpServlet {
             return;
         }
         
-        BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
         String uploadUrl;
 
         // Exception is thrown if forwardurl is invalid. In this case throw error
         try {
-            uploadUrl = blobstoreService.createUploadUrl(forwardUrl);
+            uploadUrl = uploadUrlPool.getUploadUrl(forwardUrl);
         } catch (IllegalArgumentException e) {
             throw400error(response);
             return;
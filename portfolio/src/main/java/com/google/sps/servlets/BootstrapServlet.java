@@ -0,0 +1,242 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.gson.Gson;
+import com.google.sps.cache.CommentsVersion;
+import com.google.sps.data.AuthSend;
+import com.google.sps.metrics.Metrics;
+import com.google.sps.store.DatastoreUsage;
+import com.google.sps.upload.UploadUrlPool;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/* Servlet that returns everything the page needs when it loads, in one response */
+@WebServlet("/bootstrap")
+public class BootstrapServlet extends HttpServlet {
+    private static final Logger log = Logger.getLogger(BootstrapServlet.class.getName());
+    private static final int MAX_COMMENTS_NUMBER = 1000;
+    // a part which is not ready by then is left out, the page asks its own endpoint for it
+    private static final long PARTS_TIMEOUT_MILLIS = 2000;
+    // Gson is thread-safe, so it is shared by all requests
+    private static final Gson gson = new Gson();
+    private static final UploadUrlPool uploadUrlPool = UploadUrlPool.getInstance();
+    /* Request threads can't be pooled, they end with their request. So a request starts
+     * at most one worker thread, and at most this many workers run at once.
+     * Requests which get no permit compute the parts on their own thread.
+     */
+    private static final int MAX_WORKERS = 16;
+    private static final Semaphore workerPermits = new Semaphore(MAX_WORKERS);
+
+    /* Expects maxcomments parameter of type int - size of the first page of comments.
+     * If it is invalid - returns 400 error.
+     * Returns json object with
+     *.        auth - AuthSend object, as /auth returns it
+     *.        uploadUrl - url for comment-add form, as /blobstore-upload-url?forwardurl=/comments returns it
+     *.        comments - CommentsSend object of the first page, as /comments returns it.
+     *.        commentsEtag - ETag of the first page, as /comments returns it
+     *.        commentsNotModified - true instead of comments if commentsetag parameter
+     *.                is the ETag of the first page, so the page kept by the client is current
+     * Comments are read by the request thread, while auth and upload url are computed
+     * by a worker thread. A part which failed or took too long is left out.
+     */
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // get maxComments parameter
+        int maxNumberOfComments;
+        try {
+            maxNumberOfComments = Integer.parseInt(request.getParameter("maxcomments"));
+        } catch (NumberFormatException e) {
+            throw400error(response);
+            return;
+        }
+        if (maxNumberOfComments < 0 || maxNumberOfComments > MAX_COMMENTS_NUMBER) {
+            throw400error(response);
+            return;
+        }
+
+        /* auth and upload url are different for every user and every load, so the response
+         * is not cached. The comments are revalidated by commentsetag parameter instead.
+         */
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        PrintWriter out = response.getWriter();
+        out.write('{');
+
+        AuthSend auth;
+        String uploadUrl;
+        boolean hasComments;
+        // datastore calls of the parts are shown in Server-Timing of this request
+        FutureTask<AuthSend> authTask = new FutureTask<>(DatastoreUsage.wrap(AuthServlet::getAuth));
+        FutureTask<String> uploadUrlTask = new FutureTask<>(
+                DatastoreUsage.wrap(() -> uploadUrlPool.getUploadUrl("/comments")));
+        Runnable userParts = () -> {
+            authTask.run();
+            uploadUrlTask.run();
+        };
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PARTS_TIMEOUT_MILLIS);
+            boolean inWorker = startWorker(userParts);
+
+            // comments are read by this thread meanwhile
+            hasComments = writeComments(out, maxNumberOfComments,
+                    request.getParameter("commentsetag"));
+            if (!inWorker) {
+                userParts.run();
+            }
+            auth = getPart("auth", () -> authTask.get(remaining(deadline), TimeUnit.NANOSECONDS));
+            uploadUrl = getPart("uploadUrl",
+                    () -> uploadUrlTask.get(remaining(deadline), TimeUnit.NANOSECONDS));
+        } finally {
+            // request threads must not outlive the request
+            authTask.cancel(true);
+            uploadUrlTask.cancel(true);
+        }
+
+        if (auth != null) {
+            out.write(hasComments ? ",\"auth\":" : "\"auth\":");
+            gson.toJson(auth, AuthSend.class, out);
+        }
+        if (uploadUrl != null) {
+            out.write(hasComments || auth != null ? ",\"uploadUrl\":" : "\"uploadUrl\":");
+            gson.toJson(uploadUrl, String.class, out);
+        }
+        out.write('}');
+    }
+
+    /* Starts a worker thread which runs the parts, returns false if there is no free permit
+     * or the thread could not be started, then the caller runs them.
+     */
+    private static boolean startWorker(Runnable parts) {
+        if (!workerPermits.tryAcquire()) {
+            Metrics.counter("bootstrap_inline_parts_total").increment();
+            return false;
+        }
+        try {
+            // App Engine API calls can only be made from request threads
+            Thread worker = ThreadManager.currentRequestThreadFactory().newThread(() -> {
+                try {
+                    parts.run();
+                } finally {
+                    workerPermits.release();
+                }
+            });
+            if (worker == null) {
+                workerPermits.release();
+                return false;
+            }
+            worker.start();
+            return true;
+        } catch (RuntimeException e) {
+            // the worker did not start, so it will not release its permit
+            workerPermits.release();
+            log.log(Level.WARNING, "Bootstrap worker did not start", e);
+            return false;
+        }
+    }
+
+    /* Writes the comments fields, returns false if the page failed and they are left out.
+     * If the client's ETag is the ETag of the page, the page is not read at all, so a page
+     * load which does not change the comments costs no datastore reads, as 304 of /comments.
+     * Pages which are small enough to be cached are shared with concurrent /comments requests
+     * of the same page. Bigger ones are streamed from the store, as /comments does,
+     * so they can't be left out when they fail.
+     */
+    private static boolean writeComments(PrintWriter out, int maxNumberOfComments,
+            String clientEtag) throws IOException {
+        Long version = CommentsVersion.current();
+        if (version == null) {
+            out.write("\"comments\":");
+            DataServlet.writeComments(null, null, null, maxNumberOfComments, out);
+            return true;
+        }
+        String etag = DataServlet.pageEtag(version, null, null, maxNumberOfComments);
+        if (DataServlet.matchesEtag(clientEtag, etag)) {
+            out.write("\"commentsNotModified\":true,\"commentsEtag\":");
+            gson.toJson(etag, String.class, out);
+            return true;
+        }
+        if (maxNumberOfComments > DataServlet.MAX_CACHED_PAGE_SIZE) {
+            out.write("\"comments\":");
+            DataServlet.writeComments(version, null, null, maxNumberOfComments, out);
+        } else {
+            byte[] page = getPart("comments",
+                    () -> DataServlet.getPageBytes(version, null, null, maxNumberOfComments));
+            if (page == null) {
+                return false;
+            }
+            // the page is already json
+            out.write("\"comments\":");
+            out.write(new String(page, StandardCharsets.UTF_8));
+        }
+        out.write(",\"commentsEtag\":");
+        gson.toJson(etag, String.class, out);
+        return true;
+    }
+
+    /* Returns the part, or null if computing it failed. Failures are logged and counted by part */
+    private static <T> T getPart(String part, Callable<T> computation) {
+        try {
+            return computation.call();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failed(part, e);
+        } catch (ExecutionException e) {
+            return failed(part, e.getCause());
+        } catch (Exception e) {
+            return failed(part, e);
+        }
+    }
+
+    private static <T> T failed(String part, Throwable cause) {
+        if (cause instanceof TimeoutException) {
+            log.warning("Bootstrap part " + part + " timed out");
+        } else {
+            log.log(Level.WARNING, "Bootstrap part " + part + " failed", cause);
+        }
+        Metrics.counter("bootstrap_part_failures_total{part=\"" + part + "\"}").increment();
+        return null;
+    }
+
+    private static long remaining(long deadline) {
+        return Math.max(0, deadline - System.nanoTime());
+    }
+
+    /**
+     * Changes response so that it will return  400 error
+     */
+    private static void throw400error(HttpServletResponse response) throws IOException {
+        response.setContentType("text/html;");
+        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        response.getWriter().println("<html><body><h1>HTTP 400 error</h1>" +
+                "<h2>Invalid request parameters</h2>" +
+                "<a href='/'>return to homepage</a></body></html>");
+    }
+}
@@ -14,36 +14,72 @@
 
 package com.google.sps.servlets;
 
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.FetchOptions;
-import com.google.appengine.api.datastore.PreparedQuery;
-import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.gson.Gson;
-import com.google.sps.data.Comment;
+import com.google.sps.cache.CommentsVersion;
+import com.google.sps.counter.CommentCount;
+import com.google.sps.data.DeleteJobSend;
+import com.google.sps.search.CommentSearchIndex;
+import com.google.sps.store.CommentStore;
+import com.google.sps.store.CommentStoreFactory;
 import java.io.IOException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.ArrayList;
-import java.util.List;
 
-/* Deletes all comments on every POST request */
+/* Deletes all comments on every POST request, shows progress of the deletion on GET request */
 @WebServlet("/delete-data")
 public class CommentDeleteServlet extends HttpServlet {
-  
-  /* Deletes all comments */
+  private static final Gson gson = new Gson();
+  private static final CommentStore store = CommentStoreFactory.getCommentStore();
+
+  /* Hides all comments right away and starts a job which deletes them.
+   * The comments version is bumped here for every store, so cached pages and ETags
+   * of the deleted comments are never served again.
+   * Returns json of DeleteJobSend object with the id of the job.
+   */
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    Query query = new Query("Comment");
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    PreparedQuery results = datastore.prepare(query);
-    
-    for (Entity entity : results.asIterable()) {
-      datastore.delete(entity.getKey());
+    DeleteJobSend job = store.deleteAll();
+    CommentCount.reset();
+    CommentsVersion.bump();
+    // comments posted after the tombstone stay in the feed, so they stay searchable too
+    CommentSearchIndex.getInstance().deleteUpTo(job.getTombstone());
+
+    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    response.setContentType("application/json;");
+    response.getWriter().println(gson.toJson(job));
+  }
+
+  /* Expects job parameter - id returned from doPost.
+   * Returns json of DeleteJobSend object, 400 error if job is invalid, 404 if there is no such job.
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    long jobId;
+    try {
+      jobId = Long.parseLong(request.getParameter("job"));
+    } catch (NumberFormatException e) {
+      throw400error(response);
+      return;
     }
+
+    DeleteJobSend job = store.getDeleteJob(jobId);
+    if (job == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    response.setContentType("application/json;");
+    response.getWriter().println(gson.toJson(job));
+  }
+
+  /* changes response so that it will return  400 error */
+  private static void throw400error(HttpServletResponse response) throws IOException {
+    response.setContentType("text/html;");
+    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    response.getWriter().println("<html><body><h1>HTTP 400 error</h1>" +
+        "<h2>Invalid request parameters</h2>" +
+        "<a href='/'>return to homepage</a></body></html>");
   }
 }
@@ -0,0 +1,53 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.sps.store.CommentDeleteJobs;
+import java.io.IOException;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/* Runs delete jobs started by CommentDeleteServlet. Is called only by the task queue */
+@WebServlet(CommentDeleteJobs.WORKER_URL)
+public class CommentDeleteWorkerServlet extends HttpServlet {
+  private static final Logger log = Logger.getLogger(CommentDeleteWorkerServlet.class.getName());
+
+  /* Expects job parameter - id of the job to run.
+   * Task queue retries the job if this request fails. A job which doesn't exist is logged
+   * and answered with 200, as retrying it would never succeed.
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // App Engine removes this header from requests which don't come from the task queue
+    if (request.getHeader("X-AppEngine-QueueName") == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    long jobId;
+    try {
+      jobId = Long.parseLong(request.getParameter("job"));
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    if (!CommentDeleteJobs.run(jobId)) {
+      log.severe("No delete job " + jobId + ", the task is dropped");
+    }
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.gson.Gson;
+import com.google.sps.search.CommentSearchIndex;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/* Searches comments by words of their text and owner */
+@WebServlet("/comments/search")
+public class CommentSearchServlet extends HttpServlet {
+  private static final int DEFAULT_MAX_RESULTS = 20;
+  private static final int MAX_RESULTS = 100;
+  private static final Gson gson = new Gson();
+
+  /* Expects q parameter - words to search, a word ending with '*' is a prefix,
+   *.        maxcomments parameter of type int, DEFAULT_MAX_RESULTS if it is not set.
+   * Returns json of CommentsSearchSend object, 400 error if parameters are invalid.
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String query = request.getParameter("q");
+    if (query == null) {
+      throw400error(response);
+      return;
+    }
+    int maxResults = DEFAULT_MAX_RESULTS;
+    String maxResultsString = request.getParameter("maxcomments");
+    if (maxResultsString != null) {
+      try {
+        maxResults = Integer.parseInt(maxResultsString);
+      } catch (NumberFormatException e) {
+        throw400error(response);
+        return;
+      }
+    }
+    if (maxResults < 0 || maxResults > MAX_RESULTS) {
+      throw400error(response);
+      return;
+    }
+
+    response.setContentType("application/json;");
+    response.getWriter().println(
+        gson.toJson(CommentSearchIndex.getInstance().search(query, maxResults)));
+  }
+
+  /* changes response so that it will return  400 error */
+  private static void throw400error(HttpServletResponse response) throws IOException {
+    response.setContentType("text/html;");
+    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    response.getWriter().println("<html><body><h1>HTTP 400 error</h1>" +
+        "<h2>Invalid request parameters</h2>" +
+        "<a href='/'>return to homepage</a></body></html>");
+  }
+}
@@ -0,0 +1,45 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.sps.stream.CommentBroadcaster;
+import java.io.IOException;
+import javax.servlet.AsyncContext;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/* Servlet that pushes new comments to the page with Server-Sent Events */
+@WebServlet(urlPatterns = "/comments/stream", asyncSupported = true)
+public class CommentStreamServlet extends HttpServlet {
+    // the client reconnects after the timeout, so dead connections don't stay forever
+    private static final long STREAM_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    /* Expects nothing.
+     * Returns text/event-stream, every event data is json of a Comment posted after the request.
+     * The request doesn't hold a container thread while it waits for comments.
+     */
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+
+        AsyncContext context = request.startAsync();
+        context.setTimeout(STREAM_TIMEOUT_MILLIS);
+        CommentBroadcaster.getInstance().subscribe(context);
+    }
+}
@@ -19,56 +19,83 @@ import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.images.ImagesService;
 import com.google.appengine.api.images.ImagesServiceFactory;
-import com.google.appengine.api.datastore.PreparedQuery;
-import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.Filter;
-import com.google.appengine.api.datastore.Query.FilterOperator;
-import com.google.appengine.api.datastore.Query.FilterPredicate;
-import com.google.appengine.api.datastore.Query.SortDirection;
-import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.images.ServingUrlOptions;
+import com.google.appengine.api.users.User;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import com.google.gson.Gson;
+import com.google.sps.cache.CommentPageCache;
+import com.google.sps.cache.CommentsVersion;
+import com.google.sps.cache.SharedCacheFactory;
+import com.google.sps.cache.SingleFlight;
+import com.google.sps.counter.CommentCount;
 import com.google.sps.data.Comment;
-import com.google.sps.data.CommentsSend;
+import com.google.sps.data.CommentsCursor;
+import com.google.sps.data.CommentsSendWriter;
+import com.google.sps.images.ImageVariantJobs;
+import com.google.sps.ratelimit.UserRateLimiter;
+import com.google.sps.search.CommentSearchIndex;
+import com.google.sps.store.CommentStore;
+import com.google.sps.store.CommentStoreFactory;
+import com.google.sps.stream.CommentBroadcaster;
+import com.google.sps.upload.UploadedImageIndex;
 
 import java.io.IOException;
-import java.lang.ClassCastException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Collections;
-import java.util.ArrayList;
-import java.util.logging.Logger;
+import java.util.Base64;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /* Servlet that stores and returns comments */
 @WebServlet("/comments")
 public class DataServlet extends HttpServlet {
+    // pages with more comments are not cached and are streamed to the response
+    static final int MAX_CACHED_PAGE_SIZE = 50;
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    // datastore indexes strings up to 1500 bytes, 500 chars take at most that in UTF-8
+    private static final int MAX_OWNER_LENGTH = 500;
+    // Gson and App Engine service clients are thread-safe, so they are shared by all requests
+    private static final Gson gson = new Gson();
+    private static final UserService userService = UserServiceFactory.getUserService();
+    private static final BlobstoreService blobstoreService =
+            BlobstoreServiceFactory.getBlobstoreService();
+    private static final ImagesService imagesService = ImagesServiceFactory.getImagesService();
+    private static final CommentPageCache pageCache =
+            new CommentPageCache(SharedCacheFactory.getSharedCache());
+    // concurrent requests of the same cached page share one read and one json buffer
+    private static final SingleFlight<byte[]> pageFlights = new SingleFlight<>("comments-page");
+    private static final CommentStore store = CommentStoreFactory.getCommentStore();
+    // null if posts are not limited
+    private static final UserRateLimiter postLimiter =
+            UserRateLimiter.forPostsFromSystemProperties();
+
     /* Expects maxcomments parameter of type int
-     *.        timestamp parameter of type long
-     *.        direction of type string. Can be either "next" or "previous"
-     *.        commentsonpage of type int. Means how many comments are now on page
+     *.        cursor parameter of type string. It is nextCursor or previousCursor
+     *.               from the previous response
+     *.        owner parameter of type string - only comments of this owner are returned
      * If parameters are not set in the request - sets them to default. Default parameters are:
      *         for maxcomments - MAX_COMMENTS_NUMBER
-     *.        for timestamp - current time
-     *.        for direction - "next"
-     *.        for commentsonpage - maxcomments
+     *.        for cursor - the newest comments
+     *.        for owner - comments of all owners
      * If parameters are invalid - returns 400 error.
      * Returns json of CommentSend object.
-     * CommentsSend.comments consists of maxcomments (or less) comments, which timestamp >
-     * lastTimestamp if direction = next, or <= lastTimestamp (- maxcomments number comments) if direction = previous.
+     * CommentsSend.comments consists of maxcomments (or less) comments sorted from newest to oldest,
+     * which come right after (for next cursor) or right before (for previous cursor) the page
+     * the cursor was taken from. Every page reads only its own comments from the store.
+     * Pages of one owner have CommentsSend.ownerComments, which is read without counting them.
+     * CommentsSend.totalComments and totalPages come from the counters too.
      */
     @Override
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
@@ -92,188 +119,219 @@ public class DataServlet extends HttpServlet {
             return;
         }
 
-        // get lastTimestamp parameter
-        String lastTimestampString = request.getParameter("timestamp");
-        long lastTimestamp;
-        if (lastTimestampString == null) {
-            lastTimestamp = System.currentTimeMillis();
-        } else {
+        // get cursor parameter
+        String cursorString = request.getParameter("cursor");
+        CommentsCursor cursor = null;
+        if (cursorString != null) {
             try {
-                lastTimestamp = Long.parseLong(lastTimestampString);
-            } catch (NumberFormatException e) {
+                cursor = CommentsCursor.fromWebSafeString(cursorString);
+            } catch (IllegalArgumentException e) {
                 throw400error(response);
                 return;
             }
         }
 
-        // get direction parameter
-        String direction = request.getParameter("direction");
-        if (direction == null) {
-            direction = "next";
-        }
-        if (!direction.equals("next") && !direction.equals("previous")) {
+        // get owner parameter
+        String owner = request.getParameter("owner");
+        if (owner != null && (owner.isEmpty() || owner.length() > MAX_OWNER_LENGTH)) {
             throw400error(response);
             return;
         }
+        final CommentsCursor pageCursor = cursor;
+        final int pageSize = maxNumberOfComments;
+        response.setContentType("application/json;");
+        response.setCharacterEncoding("UTF-8");
 
-        // get commentsOnPage parameter (on current page)
-        String commentsOnPageString = request.getParameter("commentsonpage");
-        int commentsOnPage;
-        if (commentsOnPageString == null) {
-            commentsOnPage = maxNumberOfComments;
-        } else {
-            try {
-                commentsOnPage = Integer.parseInt(commentsOnPageString);
-            } catch (NumberFormatException e) {
-                throw400error(response);
+        // comments version is changed by every post or delete. It is null if it is unknown
+        Long version = CommentsVersion.current();
+
+        /* The page can only change with the comments version, so the client may keep it
+         * and revalidate it with the ETag. Unchanged pages are answered with 304 before datastore
+         * is touched. Clients have to revalidate every time, because the version can change any time.
+         */
+        if (version != null) {
+            String etag = pageEtag(version, owner, cursorString, pageSize);
+            response.setHeader("ETag", etag);
+            response.setHeader("Cache-Control", "no-cache");
+            if (matchesEtag(request.getHeader("If-None-Match"), etag)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
                 return;
             }
         }
 
-        // query options
-        Filter timeFilter;
-        SortDirection sortDirection;
-        FetchOptions fetchOptions;
-
-        // set query options depending on whether the user wants to see next or previous comments
-        if (direction.equals("next")) {
-            timeFilter =
-                    new FilterPredicate("timestamp", FilterOperator.LESS_THAN, lastTimestamp);
-            sortDirection = SortDirection.DESCENDING;
-            fetchOptions = FetchOptions.Builder.withLimit(maxNumberOfComments);
-        } else {
-            /* If user wants to see previous comments - sort query in other direction and get comments
-             * that are currently on page + those we will load on page.
-             * We get comments that are currently on page, because they are earlier in the query,
-             * than the comments we need. We will offset them later.
-             */
-            timeFilter =
-                    new FilterPredicate("timestamp", FilterOperator.GREATER_THAN_OR_EQUAL, lastTimestamp);
-            sortDirection = SortDirection.ASCENDING;
-            fetchOptions = FetchOptions.Builder.withLimit(maxNumberOfComments + commentsOnPage);
+        /* If the version is unknown, or the page is too big to be cached, it is streamed
+         * to the response right from the store, so only one comment of it is in memory.
+         */
+        if (version == null || pageSize > MAX_CACHED_PAGE_SIZE) {
+            writeComments(version, owner, pageCursor, pageSize, response.getWriter());
+            return;
         }
 
-        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        // send response
+        response.getOutputStream().write(getPageBytes(version, owner, pageCursor, pageSize));
+    }
 
-        /* Check if user wants next comments, and current comment is already the last one.
-         * If so, return current comments.
-         * We change direction to previous here, because we will get the comments
-         * from reversed query, the same way we get previous comments.
-         * We just won't offset them later.
-         */
-        long minTimestamp = getMinTimestamp(datastore);
-        if (minTimestamp == lastTimestamp && direction.equals("next")) {
-            timeFilter =
-                    new FilterPredicate("timestamp", FilterOperator.GREATER_THAN_OR_EQUAL, lastTimestamp);
-            sortDirection = SortDirection.ASCENDING;
-            fetchOptions = FetchOptions.Builder.withLimit(commentsOnPage);
-            direction = "previous";
-        }
+    /* Returns json of CommentSend object for the page of at most MAX_CACHED_PAGE_SIZE comments.
+     * Pages are cached under the current comments version, so posting or deleting comments
+     * makes all cached pages unreachable. Requests of the same page under the same version
+     * wait for the one which reads it, so a page opened by many clients at once is read and
+     * serialized once. The cursor is normalized, so equal cursors share the page.
+     * Owner is null for comments of all owners. It is used by BootstrapServlet too.
+     */
+    static byte[] getPageBytes(long version, String owner, CommentsCursor cursor,
+            int maxNumberOfComments) {
+        String cursorString = cursor == null ? null : cursor.toWebSafeString();
+        String key = pageKey(version, owner, cursorString, maxNumberOfComments);
+        return pageFlights.get(key, () -> pageCache.get(key,
+                () -> readCommentsJson(version, owner, cursor, maxNumberOfComments))
+                .getBytes(StandardCharsets.UTF_8));
+    }
 
-        // make prepared query of comments from datastore
-        Query query = new Query("Comment").addSort("timestamp", sortDirection).setFilter(timeFilter);
-        PreparedQuery pq = datastore.prepare(query);
-
-        // put comments into arraylist
-        ArrayList<Comment> comments = new ArrayList<>();
-        for (Entity entity : pq.asIterable(fetchOptions)) {
-            String commentText = (String) entity.getProperty("commentText");
-            String commentOwner = (String) entity.getProperty("commentOwner");
-            long timestamp = (long) entity.getProperty("timestamp");
-            String commentImageUrl = (String) entity.getProperty("commentImageUrl");
-            Comment comment = new Comment(commentText, commentOwner, timestamp, commentImageUrl);
-            comments.add(comment);
-        }
+    /* Returns the ETag of the page under the comments version. The owner can have any chars,
+     * so it is base64 encoded after '.', which is not in the alphabet of cursors.
+     * It is used by BootstrapServlet too.
+     */
+    static String pageEtag(long version, String owner, String cursorString, int pageSize) {
+        return "\"" + Long.toHexString(version) + "-" + pageSize + "-"
+                + (cursorString == null ? "" : cursorString)
+                + (owner == null ? "" : "." + Base64.getUrlEncoder().withoutPadding()
+                        .encodeToString(owner.getBytes(StandardCharsets.UTF_8)))
+                + "\"";
+    }
 
-        /* If direction==previous, reverse comments and offset comments that are currently on page.
-         * Here we also take care of the case when user wants to see previous comments,
-         * and the comments currently on page are already the first ones.
-         * In this case, comment ArrayList consists only of comments that are currently on page,
-         * and we won't offset them.
-         */
-        if (direction.equals("previous")) {
-            Collections.reverse(comments);
-            /* Math.min function takes care of edge case when there are less than
-             * maxNumberOfComments comments in database
-             */
-            comments = new ArrayList<Comment>(
-                comments.subList(0, Math.min(maxNumberOfComments, comments.size())));
-        }
+    /* Returns the key of the page under the comments version. The owner is the last,
+     * so its ':' can't make keys of different pages equal.
+     */
+    private static String pageKey(long version, String owner, String cursorString,
+            int maxNumberOfComments) {
+        return "comments-page:" + version + ":" + maxNumberOfComments + ":"
+                + (cursorString == null ? "" : cursorString)
+                + (owner == null ? "" : ":" + owner);
+    }
 
-        // object to send back
-        long newTimestamp;
+    /* Returns json of CommentSend object, which writeComments would write */
+    private static String readCommentsJson(Long version, String owner, CommentsCursor cursor,
+            int maxNumberOfComments) {
+        StringWriter json = new StringWriter();
         try {
-            newTimestamp = comments.get(comments.size() - 1).getTimestamp();
-        } catch (IndexOutOfBoundsException e) {
-            newTimestamp = 0;
+            writeComments(version, owner, cursor, maxNumberOfComments, json);
+        } catch (IOException e) {
+            // StringWriter never throws it
+            throw new UncheckedIOException(e);
         }
-        CommentsSend commentsSend = new CommentsSend(newTimestamp, comments);
-
-        // convert commentSend object to json string
-        Gson gson = new Gson();
-        String json = gson.toJson(commentsSend);
+        return json.toString();
+    }
 
-        // send response
-        response.setContentType("application/json;");
-        response.getWriter().println(json);
+    /* Writes the page of maxNumberOfComments comments of the owner which comes after cursor
+     * as json of CommentSend object to out. The cursor is null for the first page,
+     * the owner is null for comments of all owners. Totals are read from the counters,
+     * the count of all comments is cached under the comments version.
+     * It is used by BootstrapServlet too.
+     */
+    static void writeComments(Long version, String owner, CommentsCursor cursor,
+            int maxNumberOfComments, Writer out) throws IOException {
+        CommentsSendWriter writer = new CommentsSendWriter(gson, gson.newJsonWriter(out));
+        long totalComments;
+        if (owner != null) {
+            totalComments = store.countComments(owner);
+            writer.setOwnerComments(totalComments);
+        } else {
+            totalComments = CommentCount.get(version);
+        }
+        long totalPages = maxNumberOfComments == 0
+                ? 0 : (totalComments + maxNumberOfComments - 1) / maxNumberOfComments;
+        writer.setTotals(totalComments, totalPages);
+        store.writePage(owner, cursor, maxNumberOfComments, writer);
     }
 
     /* This method is used to submit a form with new comment and put it to the database.
      * Expects comment-text, comment-owner string and commet-image file parameters from form.
-     * Returns redirect to '/#comments'
+     * Returns redirect to '/#comments', or 429 error with Retry-After header
+     * if the user posts too often.
      */
     @Override
     public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
-        UserService userService = UserServiceFactory.getUserService();
-        
         // if users are not logged in, they can't post comments - send them to "/"
         if (!userService.isUserLoggedIn()) {
             response.sendRedirect("/");
             return;
         }
-        
+
+        // the image is uploaded before the post gets here, so it is deleted with the post
+        if (postLimiter != null) {
+            User user = userService.getCurrentUser();
+            // the dev server may have no user ids
+            String userKey = user.getUserId() != null ? user.getUserId() : user.getEmail();
+            long waitNanos = postLimiter.acquire(userKey);
+            if (waitNanos > 0) {
+                deleteUploadedFiles(request);
+                long waitSeconds = (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1)
+                        / TimeUnit.SECONDS.toNanos(1);
+                response.setHeader("Retry-After", String.valueOf(waitSeconds));
+                response.sendError(SC_TOO_MANY_REQUESTS);
+                return;
+            }
+        }
+
         // get comment fields from form
         String comment = request.getParameter("comment-text");
         String owner = request.getParameter("comment-owner");
         // if comment or owner is empty - redirect back and do nothing
-        if (comment == null || owner == null) {
+        if (comment == null || owner == null || owner.isEmpty()
+                || owner.length() > MAX_OWNER_LENGTH) {
             response.sendRedirect("/#comments");
+            return;
         }
 
-        // get the URL of the image parameter via Blobstore
-        String commentImageUrl = getUploadedFileUrl(request, "comment-image");
+        // get the image parameter via Blobstore and its URL, an image uploaded before is reused
+        BlobInfo uploadedImage = getUploadedFile(request, "comment-image");
+        BlobKey commentImage = null;
+        String commentImageUrl = null;
+        if (uploadedImage != null) {
+            UploadedImageIndex.StoredImage storedImage =
+                    UploadedImageIndex.getInstance().store(uploadedImage, this::getServingUrl);
+            commentImage = storedImage.getBlobKey();
+            commentImageUrl = storedImage.getServingUrl();
+        }
 
         // get time for comment entity
         long timestamp = System.currentTimeMillis();
 
-        // create comment entity
-        Entity commentEntity = new Entity("Comment");
-        commentEntity.setProperty("commentText", comment);
-        commentEntity.setProperty("commentOwner", owner);
-        commentEntity.setProperty("timestamp", timestamp);
-        commentEntity.setProperty("commentImageUrl", commentImageUrl);
+        // store the comment
+        Comment newComment = new Comment(comment, owner, timestamp, commentImageUrl);
+        store.add(newComment);
+        CommentCount.increment();
+        CommentsVersion.bump();
+        CommentSearchIndex.getInstance().add(newComment);
+
+        // push the comment to the pages which are open now
+        CommentBroadcaster.getInstance().publish(newComment);
 
-        // put comment entity int the database
-        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-        datastore.put(commentEntity);
+        // smaller copies of the image are added to the comment later
+        if (commentImage != null) {
+            ImageVariantJobs.start(newComment, commentImage);
+        }
 
         // send back to index page
         response.sendRedirect("/#comments");
     }
 
-    /* gets min timestamp from datastore of comments
-     */
-    private static long getMinTimestamp(DatastoreService datastore) {
-        Query query = new Query("Comment").addSort("timestamp", SortDirection.ASCENDING);
-        FetchOptions fetchOptions = FetchOptions.Builder.withLimit(1);
-        PreparedQuery pq = datastore.prepare(query);
-        long minTimestamp;
-        try {
-            minTimestamp = (long) pq.asList(fetchOptions).get(0).getProperty("timestamp");
-        } catch (IndexOutOfBoundsException e) {
-            minTimestamp = 0;
+    /* checks if If-None-Match header value contains etag. It is used by BootstrapServlet too */
+    static boolean matchesEtag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
         }
-        return minTimestamp;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            // weak etags match too, e.g. if some proxy compressed the response
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(etag) || candidate.equals("*")) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /* changes response so that it will return  400 error */
@@ -285,9 +343,17 @@ public class DataServlet extends HttpServlet {
                 "<a href='/'>return to homepage</a></body></html>");
     }
     
-    /** Returns a URL that points to the uploaded file, or null if the user didn't upload a file. */
-    private String getUploadedFileUrl(HttpServletRequest request, String formInputElementName) {
-        BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+    /** Deletes all files uploaded with the request */
+    private void deleteUploadedFiles(HttpServletRequest request) {
+        for (List<BlobKey> blobKeys : blobstoreService.getUploads(request).values()) {
+            for (BlobKey blobKey : blobKeys) {
+                blobstoreService.delete(blobKey);
+            }
+        }
+    }
+
+    /** Returns the info of the uploaded file, or null if the user didn't upload a file. */
+    private BlobInfo getUploadedFile(HttpServletRequest request, String formInputElementName) {
         Map<String, List<BlobKey>> blobs = blobstoreService.getUploads(request);
         List<BlobKey> blobKeys = blobs.get(formInputElementName);
 
@@ -308,9 +374,12 @@ public class DataServlet extends HttpServlet {
 
         // We could check the validity of the file here, e.g. to make sure it's an image file
         // https://stackoverflow.com/q/10779564/873165
+        return blobInfo;
+    }
 
+    /** Returns a URL that points to the uploaded file. */
+    private String getServingUrl(BlobKey blobKey) {
         // Use ImagesService to get a URL that points to the uploaded file.
-        ImagesService imagesService = ImagesServiceFactory.getImagesService();
         ServingUrlOptions options = ServingUrlOptions.Builder.withBlobKey(blobKey);
 
         // To support running in Google Cloud Shell with AppEngine's dev server, we must use the relative
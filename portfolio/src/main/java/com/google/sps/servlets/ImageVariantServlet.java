@@ -0,0 +1,44 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.sps.images.ImageVariantJobs;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/* Serves comment image variants created without the Images service */
+@WebServlet(ImageVariantJobs.VARIANT_URL)
+public class ImageVariantServlet extends HttpServlet {
+
+  /* Expects name parameter - name of the variant.
+   * Returns the JPEG, which never changes, or 404 error if there is no such variant.
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String name = request.getParameter("name");
+    byte[] jpeg = name == null ? null : ImageVariantJobs.getLocalVariant(name);
+    if (jpeg == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    response.setContentType("image/jpeg");
+    response.setHeader("Cache-Control", "public, max-age=31536000, immutable");
+    response.setContentLength(jpeg.length);
+    response.getOutputStream().write(jpeg);
+  }
+}
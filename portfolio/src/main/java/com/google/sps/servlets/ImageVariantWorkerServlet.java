@@ -0,0 +1,55 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.sps.images.ImageVariantJobs;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/* Creates variants of comment images posted to DataServlet. Is called only by the task queue */
+@WebServlet(ImageVariantJobs.WORKER_URL)
+public class ImageVariantWorkerServlet extends HttpServlet {
+
+  /* Expects timestamp and imageurl parameters of the comment, blobkey parameter of its image.
+   * Task queue retries the job if this request fails.
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // App Engine removes this header from requests which don't come from the task queue
+    if (request.getHeader("X-AppEngine-QueueName") == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    long timestamp;
+    try {
+      timestamp = Long.parseLong(request.getParameter("timestamp"));
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    String imageUrl = request.getParameter("imageurl");
+    String blobKey = request.getParameter("blobkey");
+    if (imageUrl == null || blobKey == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    ImageVariantJobs.run(timestamp, imageUrl, new BlobKey(blobKey));
+  }
+}
@@ -0,0 +1,198 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.store;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.sps.data.Comment;
+import com.google.sps.data.CommentsCursor;
+import com.google.sps.data.CommentsSendWriter;
+import com.google.sps.data.DeleteJobSend;
+import com.google.sps.data.ImageVariant;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * CommentStore which appends every change to a file, one json record per line,
+ * and serves reads from InMemoryCommentStore. The file is replayed into memory on startup.
+ * Every change is written to the log and applied to memory under the lock of the store,
+ * so memory sees changes in the order of the log and the replay gives the same state.
+ */
+final class AppendLogCommentStore implements CommentStore {
+  private static final Logger log = Logger.getLogger(AppendLogCommentStore.class.getName());
+
+  /* one line of the log: a new comment, a delete of all comments up to a timestamp
+   * or image variants of a comment
+   */
+  private static final class LogRecord {
+    private Comment comment;
+    private Long deletedUpTo;
+    private ImageVariantsRecord imageVariants;
+  }
+
+  /* image variants of the comment with the timestamp and the image url */
+  private static final class ImageVariantsRecord {
+    private long timestamp;
+    private String imageUrl;
+    private List<ImageVariant> variants;
+  }
+
+  private final Gson gson = new Gson();
+  private final InMemoryCommentStore index = new InMemoryCommentStore();
+  private final Writer logWriter;
+
+  AppendLogCommentStore(Path path) throws IOException {
+    if (Files.exists(path)) {
+      replay(path);
+    }
+    logWriter = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    // a line torn by a crash is finished, so the next record starts on its own line
+    if (Files.size(path) > 0 && !endsWithNewLine(path)) {
+      logWriter.write('\n');
+      logWriter.flush();
+    }
+  }
+
+  @Override
+  public synchronized void add(Comment comment) {
+    LogRecord record = new LogRecord();
+    record.comment = comment;
+    append(record);
+    apply(record);
+  }
+
+  @Override
+  public void writePage(String owner, CommentsCursor cursor, int maxComments,
+      CommentsSendWriter writer) throws IOException {
+    index.writePage(owner, cursor, maxComments, writer);
+  }
+
+  @Override
+  public long countComments(String owner) {
+    return index.countComments(owner);
+  }
+
+  @Override
+  public long countAllComments() {
+    return index.countAllComments();
+  }
+
+  @Override
+  public void forEachComment(Consumer<Comment> action) {
+    index.forEachComment(action);
+  }
+
+  @Override
+  public void forEachCommentNewerThan(long timestamp, Consumer<Comment> action) {
+    index.forEachCommentNewerThan(timestamp, action);
+  }
+
+  @Override
+  public long getTombstone() {
+    return index.getTombstone();
+  }
+
+  /* the time is taken under the lock too, so comments logged before the delete are older */
+  @Override
+  public synchronized DeleteJobSend deleteAll() {
+    LogRecord record = new LogRecord();
+    record.deletedUpTo = System.currentTimeMillis();
+    append(record);
+    return apply(record);
+  }
+
+  @Override
+  public DeleteJobSend getDeleteJob(long jobId) {
+    return index.getDeleteJob(jobId);
+  }
+
+  @Override
+  public synchronized void setImageVariants(long timestamp, String imageUrl,
+      List<ImageVariant> variants) {
+    LogRecord record = new LogRecord();
+    record.imageVariants = new ImageVariantsRecord();
+    record.imageVariants.timestamp = timestamp;
+    record.imageVariants.imageUrl = imageUrl;
+    record.imageVariants.variants = variants;
+    append(record);
+    apply(record);
+  }
+
+  /* writes the record to the end of the log before it is applied, is called under the lock */
+  private void append(LogRecord record) {
+    try {
+      logWriter.write(gson.toJson(record));
+      logWriter.write('\n');
+      logWriter.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static boolean endsWithNewLine(Path path) throws IOException {
+    try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+      ByteBuffer lastByte = ByteBuffer.allocate(1);
+      channel.position(channel.size() - 1).read(lastByte);
+      return lastByte.get(0) == '\n';
+    }
+  }
+
+  /* applies all records of the log to the index. A broken line, e.g. after a crash, is skipped */
+  private void replay(Path path) throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        LogRecord record;
+        try {
+          record = gson.fromJson(line, LogRecord.class);
+        } catch (JsonParseException e) {
+          log.warning("Skipping broken comments log line: " + line);
+          continue;
+        }
+        if (record != null) {
+          apply(record);
+        }
+      }
+    }
+  }
+
+  /* applies the record to the index, returns the delete job if the record is a delete */
+  private DeleteJobSend apply(LogRecord record) {
+    DeleteJobSend job = null;
+    if (record.comment != null) {
+      index.add(record.comment);
+    }
+    if (record.deletedUpTo != null) {
+      job = index.deleteUpTo(record.deletedUpTo);
+    }
+    if (record.imageVariants != null) {
+      ImageVariantsRecord variants = record.imageVariants;
+      index.setImageVariants(variants.timestamp, variants.imageUrl, variants.variants);
+    }
+    return job;
+  }
+}
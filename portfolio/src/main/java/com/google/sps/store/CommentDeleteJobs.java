@@ -0,0 +1,198 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.store;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.sps.cache.CommentsVersion;
+import com.google.sps.data.DeleteJobSend;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background jobs which delete all comments.
+ * A job first moves CommentsTombstone, so readers see no comments right away,
+ * and then deletes the hidden comments in batches of keys, a few batches at a time.
+ * Progress is kept in a "DeleteJob" entity, so it can be read from any instance.
+ * Jobs run in the default task queue, or in a local executor if "portfolio.delete.runner"
+ * system property is "local" (needs the dev server or an instance with background threads).
+ */
+public final class CommentDeleteJobs {
+  private static final Logger log = Logger.getLogger(CommentDeleteJobs.class.getName());
+
+  public static final String WORKER_URL = "/delete-data/worker";
+  // datastore deletes at most 500 entities in one call
+  private static final int BATCH_SIZE = 500;
+  private static final int MAX_PARALLEL_BATCHES = 4;
+
+  private static final String runner = System.getProperty("portfolio.delete.runner", "taskqueue");
+  private static ExecutorService localExecutor;
+
+  private CommentDeleteJobs() {}
+
+  /* Hides all current comments and starts the job which deletes them */
+  public static DeleteJobSend start() {
+    long tombstone = System.currentTimeMillis();
+    CommentsTombstone.set(tombstone);
+    CommentsVersion.bump();
+
+    Entity job = new Entity("DeleteJob");
+    job.setProperty("state", "running");
+    job.setProperty("deleted", 0L);
+    job.setProperty("tombstone", tombstone);
+    long jobId = InstrumentedDatastore.getDatastoreService().put(job).getId();
+
+    if (runner.equals("local")) {
+      getLocalExecutor().execute(() -> {
+        try {
+          run(jobId);
+        } catch (RuntimeException e) {
+          log.log(Level.WARNING, "Delete job " + jobId + " failed", e);
+        }
+      });
+    } else {
+      QueueFactory.getDefaultQueue().add(
+          TaskOptions.Builder.withUrl(WORKER_URL).param("job", String.valueOf(jobId)));
+    }
+    return new DeleteJobSend(jobId, "running", 0, tombstone);
+  }
+
+  /* Returns progress of the job or null if there is no such job */
+  public static DeleteJobSend getStatus(long jobId) {
+    try {
+      Entity job = InstrumentedDatastore.getDatastoreService().get(jobKey(jobId));
+      return new DeleteJobSend(jobId, (String) job.getProperty("state"),
+          (long) job.getProperty("deleted"), (long) job.getProperty("tombstone"));
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Deletes comments hidden by the job. Can be run again after a failure,
+   * it continues with the comments which are still there.
+   * Returns false if there is no such job.
+   */
+  public static boolean run(long jobId) {
+    DatastoreService datastore = InstrumentedDatastore.getDatastoreService();
+    AsyncDatastoreService asyncDatastore = DatastoreServiceFactory.getAsyncDatastoreService();
+    Entity job;
+    try {
+      job = datastore.get(jobKey(jobId));
+    } catch (EntityNotFoundException e) {
+      return false;
+    }
+    long tombstone = (long) job.getProperty("tombstone");
+    long deleted = (long) job.getProperty("deleted");
+
+    // only keys are read, comments are not needed to delete them
+    Query query = new Query("Comment")
+        .setFilter(new FilterPredicate("timestamp", FilterOperator.LESS_THAN_OR_EQUAL, tombstone))
+        .setKeysOnly();
+    Deque<Future<Void>> runningDeletes = new ArrayDeque<>();
+    Deque<Integer> runningSizes = new ArrayDeque<>();
+    Deque<Long> runningStarts = new ArrayDeque<>();
+    List<Key> batch = new ArrayList<>(BATCH_SIZE);
+
+    try {
+      for (Entity entity : datastore.prepare(query).asIterable(
+          FetchOptions.Builder.withChunkSize(BATCH_SIZE))) {
+        batch.add(entity.getKey());
+        if (batch.size() < BATCH_SIZE) {
+          continue;
+        }
+        // wait for the oldest batch if too many are being deleted now
+        if (runningDeletes.size() == MAX_PARALLEL_BATCHES) {
+          deleted += await(runningDeletes.poll(), runningSizes.poll(), runningStarts.poll());
+          saveProgress(datastore, job, "running", deleted);
+        }
+        runningStarts.add(System.nanoTime());
+        runningDeletes.add(asyncDatastore.delete(batch));
+        runningSizes.add(batch.size());
+        batch = new ArrayList<>(BATCH_SIZE);
+      }
+      if (!batch.isEmpty()) {
+        runningStarts.add(System.nanoTime());
+        runningDeletes.add(asyncDatastore.delete(batch));
+        runningSizes.add(batch.size());
+      }
+      while (!runningDeletes.isEmpty()) {
+        deleted += await(runningDeletes.poll(), runningSizes.poll(), runningStarts.poll());
+      }
+    } catch (RuntimeException e) {
+      saveProgress(datastore, job, "failed", deleted);
+      throw e;
+    }
+    saveProgress(datastore, job, "done", deleted);
+    return true;
+  }
+
+  /*
+   * waits for delete of the batch, returns number of deleted comments. Async deletes bypass
+   * InstrumentedDatastore, so the batch is recorded here from its start to its completion
+   */
+  private static int await(Future<Void> delete, int size, long start) {
+    try {
+      delete.get();
+      DatastoreUsage.record("delete", size, System.nanoTime() - start);
+      return size;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while deleting comments", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private static void saveProgress(DatastoreService datastore, Entity job, String state, long deleted) {
+    job.setProperty("state", state);
+    job.setProperty("deleted", deleted);
+    datastore.put(job);
+  }
+
+  private static Key jobKey(long jobId) {
+    return KeyFactory.createKey("DeleteJob", jobId);
+  }
+
+  private static synchronized ExecutorService getLocalExecutor() {
+    if (localExecutor == null) {
+      localExecutor = Executors.newSingleThreadExecutor(ThreadManager.backgroundThreadFactory());
+    }
+    return localExecutor;
+  }
+}
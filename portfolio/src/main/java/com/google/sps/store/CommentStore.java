@@ -0,0 +1,74 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.store;
+
+import com.google.sps.data.Comment;
+import com.google.sps.data.CommentsCursor;
+import com.google.sps.data.CommentsSendWriter;
+import com.google.sps.data.DeleteJobSend;
+import com.google.sps.data.ImageVariant;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Storage of the comments. Comments are ordered by timestamp,
+ * pages are read with CommentsCursor in both directions.
+ * Implementations are chosen with CommentStoreFactory.
+ */
+public interface CommentStore {
+
+  /* Stores new comment */
+  void add(Comment comment);
+
+  /**
+   * Writes the page of maxComments comments which comes after cursor (null for the first page)
+   * to writer, from the newest to the oldest, and finishes it with cursors to the pages around.
+   * Only comments of the owner are written, or comments of all owners if owner is null.
+   */
+  void writePage(String owner, CommentsCursor cursor, int maxComments, CommentsSendWriter writer)
+      throws IOException;
+
+  /* Returns the number of shown comments of the owner, without reading them */
+  long countComments(String owner);
+
+  /* Counts all shown comments. It may read all of them, so it is only used to seed counters */
+  long countAllComments();
+
+  /* Calls action for every shown comment, from the newest to the oldest */
+  void forEachComment(Consumer<Comment> action);
+
+  /* Calls action for every shown comment newer than timestamp, from the newest to the oldest */
+  void forEachCommentNewerThan(long timestamp, Consumer<Comment> action);
+
+  /* Returns the timestamp up to which comments are deleted, 0 if they never were */
+  long getTombstone();
+
+  /**
+   * Deletes all comments posted until now. They are not shown from the moment this method
+   * returns, but may be physically deleted later. Returns the job which deletes them,
+   * with the tombstone: the timestamp up to which comments are deleted.
+   */
+  DeleteJobSend deleteAll();
+
+  /* Returns progress of the job returned by deleteAll, or null if there is no such job */
+  DeleteJobSend getDeleteJob(long jobId);
+
+  /**
+   * Sets image variants of the comment with given timestamp and image url.
+   * Does nothing if the comment was deleted meanwhile.
+   */
+  void setImageVariants(long timestamp, String imageUrl, List<ImageVariant> variants);
+}
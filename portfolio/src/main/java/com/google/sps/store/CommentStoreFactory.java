@@ -0,0 +1,54 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+
+/**
+ * Creates CommentStore implementation chosen by "portfolio.store" system property:
+ * "datastore" (default), "memory" for comments kept only in instance memory,
+ * or "log" for the append-only file set by "portfolio.store.log" (default "comments.log").
+ */
+public final class CommentStoreFactory {
+
+  private static final CommentStore commentStore =
+      create(System.getProperty("portfolio.store", "datastore"));
+
+  private CommentStoreFactory() {}
+
+  public static CommentStore getCommentStore() {
+    return commentStore;
+  }
+
+  private static CommentStore create(String name) {
+    switch (name) {
+      case "datastore":
+        return new DatastoreCommentStore();
+      case "memory":
+        return new InMemoryCommentStore();
+      case "log":
+        try {
+          return new AppendLogCommentStore(
+              Paths.get(System.getProperty("portfolio.store.log", "comments.log")));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      default:
+        throw new IllegalArgumentException("Unknown portfolio.store: " + name);
+    }
+  }
+}
@@ -0,0 +1,173 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.store;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.sps.metrics.Metrics;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit of comment entities: concurrent writes are put to datastore together
+ * with one batch put instead of one put per comment.
+ * There is no background thread. One of the waiting request threads becomes the leader,
+ * waits until the batch is full or maxDelayMillis pass, and puts the batch for everyone.
+ * put() returns only after the batch with its entity is stored.
+ * If the queue is full, the entity is put on its own right away.
+ */
+public final class CommentWriteBatcher {
+
+  private final int maxBatchSize;
+  private final long maxDelayMillis;
+  private final BlockingQueue<PendingWrite> queue;
+  private final ReentrantLock leaderLock = new ReentrantLock();
+  // is notified when new writes arrive, so the leader can stop waiting for a full batch
+  private final Object arrivals = new Object();
+
+  private final LongAdder batches = Metrics.counter("comment_write_batches_total");
+  private final LongAdder batchedWrites = Metrics.counter("comment_write_batched_total");
+  private final LongAdder directWrites = Metrics.counter("comment_write_direct_total");
+  private final LongAdder flushNanos = Metrics.counter("comment_write_flush_nanos_total");
+
+  public CommentWriteBatcher(int maxBatchSize, long maxDelayMillis, int maxQueueDepth) {
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelayMillis = maxDelayMillis;
+    this.queue = new ArrayBlockingQueue<>(maxQueueDepth);
+    Metrics.gauge("comment_write_queue_depth", queue::size);
+  }
+
+  /**
+   * Creates batcher configured by system properties, or returns null if comments should be
+   * written one by one. Properties are "portfolio.writes.batching" (true or false, default false),
+   * "portfolio.writes.maxBatchSize" (default 100), "portfolio.writes.maxDelayMillis" (default 10)
+   * and "portfolio.writes.maxQueueDepth" (default 1000).
+   */
+  public static CommentWriteBatcher fromSystemProperties() {
+    if (!Boolean.getBoolean("portfolio.writes.batching")) {
+      return null;
+    }
+    return new CommentWriteBatcher(
+        Integer.getInteger("portfolio.writes.maxBatchSize", 100),
+        Long.getLong("portfolio.writes.maxDelayMillis", 10),
+        Integer.getInteger("portfolio.writes.maxQueueDepth", 1000));
+  }
+
+  /* Puts entity to datastore together with other concurrent writes, returns when it is stored */
+  public void put(Entity entity) {
+    PendingWrite write = new PendingWrite(entity);
+    if (!queue.offer(write)) {
+      directWrites.increment();
+      InstrumentedDatastore.getDatastoreService().put(entity);
+      return;
+    }
+    synchronized (arrivals) {
+      arrivals.notifyAll();
+    }
+
+    // lead the batches until the write is stored, or wait for the current leader
+    while (!write.result.isDone()) {
+      if (leaderLock.tryLock()) {
+        try {
+          flushBatch();
+        } finally {
+          leaderLock.unlock();
+        }
+      } else {
+        awaitResult(write);
+      }
+    }
+
+    try {
+      write.result.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /* Waits until the batch is full or maxDelayMillis pass, then puts it to datastore */
+  private void flushBatch() {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    synchronized (arrivals) {
+      long remaining;
+      while (queue.size() < maxBatchSize && (remaining = deadline - System.nanoTime()) > 0) {
+        try {
+          TimeUnit.NANOSECONDS.timedWait(arrivals, remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+
+    List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+    queue.drainTo(batch, maxBatchSize);
+    if (batch.isEmpty()) {
+      return;
+    }
+    List<Entity> entities = new ArrayList<>(batch.size());
+    for (PendingWrite write : batch) {
+      entities.add(write.entity);
+    }
+
+    long start = System.nanoTime();
+    try {
+      InstrumentedDatastore.getDatastoreService().put(entities);
+      for (PendingWrite write : batch) {
+        write.result.complete(null);
+      }
+    } catch (RuntimeException e) {
+      for (PendingWrite write : batch) {
+        write.result.completeExceptionally(e);
+      }
+    } finally {
+      flushNanos.add(System.nanoTime() - start);
+      batches.increment();
+      batchedWrites.add(batch.size());
+    }
+  }
+
+  /* Waits for the current leader to store the write, gives up after maxDelayMillis to lead itself */
+  private void awaitResult(PendingWrite write) {
+    try {
+      write.result.get(maxDelayMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      // the result is checked by the caller
+    }
+  }
+
+  /* entity which waits to be stored */
+  private static final class PendingWrite {
+    private final Entity entity;
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    private PendingWrite(Entity entity) {
+      this.entity = entity;
+    }
+  }
+}
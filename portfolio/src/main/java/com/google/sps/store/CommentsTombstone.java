@@ -0,0 +1,64 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.store;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.sps.cache.SharedCache;
+import com.google.sps.cache.SharedCacheFactory;
+
+/**
+ * Timestamp of the last "delete all comments" request.
+ * Comments with timestamp not greater than the tombstone are deleted or are being deleted
+ * in the background, so readers must not show them.
+ * It is stored in datastore and cached in the shared cache.
+ */
+public final class CommentsTombstone {
+
+  private static final String CACHE_KEY = "comments-tombstone";
+  private static final int CACHE_EXPIRATION_SECONDS = 24 * 60 * 60;
+  private static final Key KEY = KeyFactory.createKey("CommentsTombstone", "comments");
+
+  private CommentsTombstone() {}
+
+  /* Returns the tombstone timestamp, 0 if comments were never deleted */
+  public static long get() {
+    SharedCache cache = SharedCacheFactory.getSharedCache();
+    Long tombstone = (Long) cache.get(CACHE_KEY);
+    if (tombstone != null) {
+      return tombstone;
+    }
+
+    DatastoreService datastore = InstrumentedDatastore.getDatastoreService();
+    try {
+      tombstone = (Long) datastore.get(KEY).getProperty("timestamp");
+    } catch (EntityNotFoundException e) {
+      tombstone = 0L;
+    }
+    cache.put(CACHE_KEY, tombstone, CACHE_EXPIRATION_SECONDS);
+    return tombstone;
+  }
+
+  /* Hides all comments with timestamp not greater than given one */
+  public static void set(long timestamp) {
+    Entity entity = new Entity(KEY);
+    entity.setProperty("timestamp", timestamp);
+    InstrumentedDatastore.getDatastoreService().put(entity);
+    SharedCacheFactory.getSharedCache().put(CACHE_KEY, timestamp, CACHE_EXPIRATION_SECONDS);
+  }
+}
@@ -0,0 +1,357 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.store;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.sps.counter.ShardedCounter;
+import com.google.sps.counter.ShardedCounterFactory;
+import com.google.sps.data.Comment;
+import com.google.sps.data.CommentsCursor;
+import com.google.sps.data.CommentsSendWriter;
+import com.google.sps.data.DeleteJobSend;
+import com.google.sps.data.ImageVariant;
+import com.google.sps.metrics.Metrics;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * CommentStore on top of App Engine datastore, comments are "Comment" entities.
+ * Deleted comments are hidden with CommentsTombstone and deleted by CommentDeleteJobs.
+ * Comments are ordered by timestamp and then by key, which is their id in cursors.
+ * Pages use the (commentOwner, timestamp, key) indexes of datastore-indexes.xml.
+ * The number of comments of every owner is kept in a sharded counter, so posts of one owner
+ * don't contend for one entity. Its name has the tombstone, so a deletion of all comments
+ * starts new counters, which are seeded from the comments of the owner left in the store.
+ */
+final class DatastoreCommentStore implements CommentStore {
+  private static final Logger log = Logger.getLogger(DatastoreCommentStore.class.getName());
+  // bigger chunks need fewer round trips to datastore when all comments are read
+  private static final int SCAN_CHUNK_SIZE = 500;
+  // owner counters kept by the instance, the others are created again from their entities
+  private static final int OWNER_COUNTERS_CAPACITY = 1000;
+
+  // null if comments are written one by one
+  private final CommentWriteBatcher writeBatcher = CommentWriteBatcher.fromSystemProperties();
+  // owner counters by counter name, the least recently used are dropped
+  private final Map<String, ShardedCounter> ownerCounters =
+      new LinkedHashMap<String, ShardedCounter>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ShardedCounter> eldest) {
+          return size() > OWNER_COUNTERS_CAPACITY;
+        }
+      };
+  private final LongAdder ownerCountFailures = Metrics.counter("owner_count_failures_total");
+
+  @Override
+  public void add(Comment comment) {
+    Entity commentEntity = new Entity("Comment");
+    commentEntity.setProperty("commentText", comment.getCommentText());
+    commentEntity.setProperty("commentOwner", comment.getCommentOwner());
+    commentEntity.setProperty("timestamp", comment.getTimestamp());
+    commentEntity.setProperty("commentImageUrl", comment.getCommentImageUrl());
+
+    // put comment entity int the database, together with concurrent posts if batching is on
+    if (writeBatcher != null) {
+      writeBatcher.put(commentEntity);
+    } else {
+      InstrumentedDatastore.getDatastoreService().put(commentEntity);
+    }
+    incrementOwnerCount(comment);
+  }
+
+  /**
+   * Every page is one query. Next pages are written as soon as they are read, so only one comment
+   * is in memory at a time. Previous pages are read from the oldest and written in reverse,
+   * so they are kept in memory, at most maxComments + 1 entities.
+   * Datastore allows inequality filters on one property only, so the query starts at the
+   * timestamp of the cursor, and comments with that timestamp on the other side of the cursor key
+   * are skipped while they are read. Reads are fetched in batches of the page size plus the extra
+   * comment and the cursor comment itself, so usually it is still one round trip.
+   */
+  @Override
+  public void writePage(String owner, CommentsCursor cursor, int maxComments,
+      CommentsSendWriter writer) throws IOException {
+    DatastoreService datastore = InstrumentedDatastore.getDatastoreService();
+    FetchOptions fetchOptions = FetchOptions.Builder
+        .withPrefetchSize(maxComments + 2).chunkSize(maxComments + 2);
+
+    // comments which are not newer than the tombstone are being deleted and are not shown
+    long tombstone = CommentsTombstone.get();
+    Filter notDeletedFilter =
+        new FilterPredicate("timestamp", FilterOperator.GREATER_THAN, tombstone);
+
+    if (cursor == null || cursor.isNext()) {
+      /* Next comments are older than the cursor, read from newest to oldest. One more comment
+       * than needed is read to find out if there are more comments without a separate query.
+       */
+      Query query = new Query("Comment")
+          .addSort("timestamp", SortDirection.DESCENDING)
+          .addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.DESCENDING);
+      if (cursor == null) {
+        query.setFilter(ownerFilter(owner, notDeletedFilter));
+      } else {
+        query.setFilter(ownerFilter(owner,
+            notDeletedFilter,
+            new FilterPredicate("timestamp", FilterOperator.LESS_THAN_OR_EQUAL,
+                cursor.getTimestamp())));
+      }
+
+      // write comments while reading them from datastore
+      Iterator<Entity> entities = datastore.prepare(query).asIterator(fetchOptions);
+      Entity entity = nextAfter(entities, cursor);
+      writer.beginComments();
+      while (writer.getCommentsNumber() < maxComments && entity != null) {
+        writer.writeComment(toComment(entity), entity.getKey().getId());
+        entity = entities.hasNext() ? entities.next() : null;
+      }
+      // the extra comment only tells that there is one more page of older comments
+      writer.endComments(cursor != null, entity != null);
+      return;
+    }
+
+    /* Previous comments are newer than the cursor. The page is the oldest of them,
+     * so they are read from oldest to newest and written in reverse. One more comment
+     * than needed tells if there are even newer comments.
+     */
+    Query query = new Query("Comment")
+        .addSort("timestamp", SortDirection.ASCENDING)
+        .addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.ASCENDING);
+    if (cursor.getTimestamp() > tombstone) {
+      query.setFilter(ownerFilter(owner,
+          new FilterPredicate("timestamp", FilterOperator.GREATER_THAN_OR_EQUAL,
+              cursor.getTimestamp())));
+    } else {
+      query.setFilter(ownerFilter(owner, notDeletedFilter));
+    }
+    Iterator<Entity> iterator = datastore.prepare(query).asIterator(fetchOptions);
+    List<Entity> entities = new ArrayList<>();
+    for (Entity entity = nextAfter(iterator, cursor);
+        entity != null && entities.size() <= maxComments;
+        entity = iterator.hasNext() ? iterator.next() : null) {
+      entities.add(entity);
+    }
+    int pageLength = Math.min(maxComments, entities.size());
+    writer.beginComments();
+    for (int i = pageLength - 1; i >= 0; i--) {
+      Entity entity = entities.get(i);
+      writer.writeComment(toComment(entity), entity.getKey().getId());
+    }
+    // the page the cursor was taken from is older, unless it was deleted
+    writer.endComments(entities.size() > maxComments,
+        pageLength > 0 && cursor.getTimestamp() > tombstone);
+  }
+
+  /* Returns the first entity which is on the page side of the cursor, or null if there is none.
+   * Entities are read in the order of the page, starting at the timestamp of the cursor.
+   */
+  private static Entity nextAfter(Iterator<Entity> entities, CommentsCursor cursor) {
+    while (entities.hasNext()) {
+      Entity entity = entities.next();
+      if (cursor == null || (long) entity.getProperty("timestamp") != cursor.getTimestamp()) {
+        return entity;
+      }
+      long id = entity.getKey().getId();
+      if (cursor.isNext() ? id < cursor.getId() : id > cursor.getId()) {
+        return entity;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public long countComments(String owner) {
+    if (owner == null || owner.isEmpty()) {
+      return 0;
+    }
+    return ownerCounter(owner, CommentsTombstone.get()).sum();
+  }
+
+  /* Only keys are read */
+  @Override
+  public long countAllComments() {
+    Query query = new Query("Comment")
+        .setFilter(new FilterPredicate("timestamp", FilterOperator.GREATER_THAN,
+            CommentsTombstone.get()))
+        .setKeysOnly();
+    return InstrumentedDatastore.getDatastoreService().prepare(query)
+        .countEntities(FetchOptions.Builder.withChunkSize(SCAN_CHUNK_SIZE));
+  }
+
+  @Override
+  public void forEachComment(Consumer<Comment> action) {
+    forEachCommentNewerThan(0, action);
+  }
+
+  /* Comments are read in chunks, so only a chunk of them is in memory at a time */
+  @Override
+  public void forEachCommentNewerThan(long timestamp, Consumer<Comment> action) {
+    Query query = new Query("Comment")
+        .setFilter(new FilterPredicate("timestamp", FilterOperator.GREATER_THAN,
+            Math.max(timestamp, CommentsTombstone.get())))
+        .addSort("timestamp", SortDirection.DESCENDING);
+    for (Entity entity : InstrumentedDatastore.getDatastoreService().prepare(query)
+        .asIterable(FetchOptions.Builder.withChunkSize(SCAN_CHUNK_SIZE))) {
+      action.accept(toComment(entity));
+    }
+  }
+
+  @Override
+  public long getTombstone() {
+    return CommentsTombstone.get();
+  }
+
+  @Override
+  public DeleteJobSend deleteAll() {
+    return CommentDeleteJobs.start();
+  }
+
+  @Override
+  public DeleteJobSend getDeleteJob(long jobId) {
+    return CommentDeleteJobs.getStatus(jobId);
+  }
+
+  /* Variants are kept in the comment entity as a list of embedded entities */
+  @Override
+  public void setImageVariants(long timestamp, String imageUrl, List<ImageVariant> variants) {
+    // the comment is deleted or is being deleted, putting it again could bring it back
+    if (timestamp <= CommentsTombstone.get()) {
+      return;
+    }
+    List<EmbeddedEntity> variantEntities = new ArrayList<>();
+    for (ImageVariant variant : variants) {
+      EmbeddedEntity variantEntity = new EmbeddedEntity();
+      variantEntity.setUnindexedProperty("url", variant.getUrl());
+      variantEntity.setUnindexedProperty("width", (long) variant.getWidth());
+      variantEntity.setUnindexedProperty("height", (long) variant.getHeight());
+      variantEntities.add(variantEntity);
+    }
+
+    // equality filters only, so no composite index is needed
+    Query query = new Query("Comment").setFilter(CompositeFilterOperator.and(
+        new FilterPredicate("timestamp", FilterOperator.EQUAL, timestamp),
+        new FilterPredicate("commentImageUrl", FilterOperator.EQUAL, imageUrl)));
+    DatastoreService datastore = InstrumentedDatastore.getDatastoreService();
+    for (Entity commentEntity : datastore.prepare(query).asIterable()) {
+      commentEntity.setUnindexedProperty("commentImageVariants", variantEntities);
+      datastore.put(commentEntity);
+    }
+  }
+
+  /* Adds the comment to the count of its owner. The comment is already stored, so a failed
+   * count is only logged and the post goes on, the count of the owner is short by one.
+   */
+  private void incrementOwnerCount(Comment comment) {
+    String owner = comment.getCommentOwner();
+    if (owner == null || owner.isEmpty()) {
+      return;
+    }
+    long tombstone = CommentsTombstone.get();
+    // the comment was deleted by a concurrent delete, it is not counted
+    if (comment.getTimestamp() <= tombstone) {
+      return;
+    }
+    try {
+      ownerCounter(owner, tombstone).increment(1);
+    } catch (RuntimeException e) {
+      ownerCountFailures.increment();
+      log.log(Level.WARNING, "Comment of " + owner + " is not counted", e);
+    }
+  }
+
+  /* Returns the counter of the comments of the owner posted after the tombstone.
+   * Owners can have any chars and up to 1500 bytes, so they are hashed in counter names.
+   */
+  private ShardedCounter ownerCounter(String owner, long tombstone) {
+    String name = "owner-" + tombstone + "-" + hash(owner);
+    synchronized (ownerCounters) {
+      return ownerCounters.computeIfAbsent(name, key -> ShardedCounterFactory.create(
+          name, "owner", () -> countOwnerComments(owner, tombstone)));
+    }
+  }
+
+  /* Only keys are read, with the (commentOwner, timestamp) index of previous pages */
+  private static long countOwnerComments(String owner, long tombstone) {
+    Query query = new Query("Comment")
+        .setFilter(ownerFilter(owner,
+            new FilterPredicate("timestamp", FilterOperator.GREATER_THAN, tombstone)))
+        .setKeysOnly();
+    return InstrumentedDatastore.getDatastoreService().prepare(query)
+        .countEntities(FetchOptions.Builder.withChunkSize(SCAN_CHUNK_SIZE));
+  }
+
+  /* returns url-safe base64 of SHA-256 of the string */
+  private static String hash(String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256")
+          .digest(value.getBytes(StandardCharsets.UTF_8));
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM has SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /* returns AND of the filters, with the owner filter if owner is not null */
+  private static Filter ownerFilter(String owner, Filter... filters) {
+    List<Filter> all = new ArrayList<>(Arrays.asList(filters));
+    if (owner != null) {
+      all.add(new FilterPredicate("commentOwner", FilterOperator.EQUAL, owner));
+    }
+    return all.size() == 1 ? all.get(0) : CompositeFilterOperator.and(all);
+  }
+
+  /* converts comment entity from datastore to Comment */
+  static Comment toComment(Entity entity) {
+    String commentText = (String) entity.getProperty("commentText");
+    String commentOwner = (String) entity.getProperty("commentOwner");
+    long timestamp = (long) entity.getProperty("timestamp");
+    String commentImageUrl = (String) entity.getProperty("commentImageUrl");
+    @SuppressWarnings("unchecked")
+    List<EmbeddedEntity> variantEntities =
+        (List<EmbeddedEntity>) entity.getProperty("commentImageVariants");
+    List<ImageVariant> variants = null;
+    if (variantEntities != null) {
+      variants = new ArrayList<>(variantEntities.size());
+      for (EmbeddedEntity variantEntity : variantEntities) {
+        variants.add(new ImageVariant((String) variantEntity.getProperty("url"),
+            (int) (long) variantEntity.getProperty("width"),
+            (int) (long) variantEntity.getProperty("height")));
+      }
+    }
+    return new Comment(commentText, commentOwner, timestamp, commentImageUrl, variants);
+  }
+}
@@ -0,0 +1,151 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.store;
+
+import com.google.sps.metrics.Histogram;
+import com.google.sps.metrics.Metrics;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Datastore calls, entities and time spent in datastore by operation (get, put, query, ...),
+ * within one request. Calls are recorded by InstrumentedDatastore on the thread which makes them,
+ * for the usage started on this thread or passed to it with wrap, and into
+ * datastore_call_duration_seconds and datastore_entities_total metrics of the instance.
+ */
+public final class DatastoreUsage {
+
+  /* usage of one operation within the request */
+  private static final class Operation {
+    private long calls;
+    private long entities;
+    private long nanos;
+  }
+
+  /* metrics of one operation for the instance */
+  private static final class OperationMetrics {
+    private final Histogram latency;
+    private final LongAdder entities;
+
+    private OperationMetrics(String operation) {
+      String label = "{op=\"" + operation + "\"}";
+      latency = Metrics.histogram("datastore_call_duration_seconds" + label);
+      entities = Metrics.counter("datastore_entities_total" + label);
+    }
+  }
+
+  private static final ThreadLocal<DatastoreUsage> current = new ThreadLocal<>();
+  private static final Map<String, OperationMetrics> metrics = new ConcurrentHashMap<>();
+
+  // guarded by this, as worker threads of the request record into it too.
+  // Sorted, so the header is always in the same order
+  private final Map<String, Operation> operations = new TreeMap<>();
+
+  private DatastoreUsage() {}
+
+  /* Starts recording datastore calls of the current thread, until stop is called */
+  public static DatastoreUsage start() {
+    DatastoreUsage usage = new DatastoreUsage();
+    current.set(usage);
+    return usage;
+  }
+
+  /* Stops recording, the usage keeps the calls recorded so far */
+  public void stop() {
+    if (current.get() == this) {
+      current.remove();
+    }
+  }
+
+  /* Returns the task which records its datastore calls into the usage of the current thread,
+   * for tasks the request runs on other threads. The task is returned as it is if there is none.
+   */
+  public static <T> Callable<T> wrap(Callable<T> task) {
+    DatastoreUsage usage = current.get();
+    if (usage == null) {
+      return task;
+    }
+    return () -> {
+      DatastoreUsage previous = current.get();
+      current.set(usage);
+      try {
+        return task.call();
+      } finally {
+        if (previous != null) {
+          current.set(previous);
+        } else {
+          current.remove();
+        }
+      }
+    };
+  }
+
+  /* Records the call of the current thread. Entities are the ones read or written by it */
+  static void record(String operation, long entities, long nanos) {
+    OperationMetrics operationMetrics = metrics.computeIfAbsent(operation, OperationMetrics::new);
+    operationMetrics.latency.record(nanos);
+    operationMetrics.entities.add(entities);
+
+    DatastoreUsage usage = current.get();
+    if (usage != null) {
+      usage.add(operation, 1, entities, nanos);
+    }
+  }
+
+  /* Records results of an earlier call read later, e.g. query results fetched while iterating */
+  static void recordResults(String operation, long entities, long nanos) {
+    metrics.computeIfAbsent(operation, OperationMetrics::new).entities.add(entities);
+    DatastoreUsage usage = current.get();
+    if (usage != null) {
+      usage.add(operation, 0, entities, nanos);
+    }
+  }
+
+  private synchronized void add(String operation, long calls, long entities, long nanos) {
+    Operation usageOperation = operations.computeIfAbsent(operation, k -> new Operation());
+    usageOperation.calls += calls;
+    usageOperation.entities += entities;
+    usageOperation.nanos += nanos;
+  }
+
+  public synchronized boolean isEmpty() {
+    return operations.isEmpty();
+  }
+
+  /**
+   * Returns value of Server-Timing header with one metric per operation, e.g.
+   * datastore-get;dur=1.250;desc="2 calls, 2 entities"
+   */
+  public synchronized String toServerTiming() {
+    StringBuilder header = new StringBuilder();
+    for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+      Operation operation = entry.getValue();
+      if (header.length() > 0) {
+        header.append(", ");
+      }
+      header.append("datastore-").append(entry.getKey())
+          .append(String.format(Locale.ROOT, ";dur=%.3f", operation.nanos / 1e6))
+          .append(";desc=\"").append(operation.calls)
+          .append(operation.calls == 1 ? " call, " : " calls, ")
+          .append(operation.entities)
+          .append(operation.entities == 1 ? " entity\"" : " entities\"");
+    }
+    return header.toString();
+  }
+}
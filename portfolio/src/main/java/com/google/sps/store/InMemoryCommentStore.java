@@ -0,0 +1,214 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.store;
+
+import com.google.sps.data.Comment;
+import com.google.sps.data.CommentsCursor;
+import com.google.sps.data.CommentsSendWriter;
+import com.google.sps.data.DeleteJobSend;
+import com.google.sps.data.ImageVariant;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * CommentStore which keeps comments of this instance in a concurrent sorted map,
+ * from the newest to the oldest, and in one more such map for every owner.
+ * Pages are read in O(log n + page) without locks.
+ * Comments are lost when the instance stops.
+ */
+final class InMemoryCommentStore implements CommentStore {
+
+  /* position of a comment in the index, comments with equal timestamps are ordered by seq */
+  private static final class IndexKey implements Comparable<IndexKey> {
+    private final long timestamp;
+    private final long seq;
+
+    private IndexKey(long timestamp, long seq) {
+      this.timestamp = timestamp;
+      this.seq = seq;
+    }
+
+    /* the newest comment is the first */
+    @Override
+    public int compareTo(IndexKey other) {
+      int byTimestamp = Long.compare(other.timestamp, timestamp);
+      return byTimestamp != 0 ? byTimestamp : Long.compare(other.seq, seq);
+    }
+  }
+
+  private final ConcurrentNavigableMap<IndexKey, Comment> index = new ConcurrentSkipListMap<>();
+  // the same comments by owner, with the same keys
+  private final Map<String, ConcurrentNavigableMap<IndexKey, Comment>> ownerIndexes =
+      new ConcurrentHashMap<>();
+  // sizes of the owner indexes, as size() of a skip list map is not constant time
+  private final Map<String, AtomicLong> ownerCounts = new ConcurrentHashMap<>();
+  private final AtomicLong lastSeq = new AtomicLong();
+  private final AtomicLong lastJobId = new AtomicLong();
+  private final AtomicLong tombstone = new AtomicLong();
+  private final Map<Long, DeleteJobSend> deleteJobs = new ConcurrentHashMap<>();
+
+  @Override
+  public void add(Comment comment) {
+    IndexKey key = new IndexKey(comment.getTimestamp(), lastSeq.incrementAndGet());
+    String owner = comment.getCommentOwner();
+    // comments without owner are only in the main index
+    if (owner != null) {
+      ownerIndexes.computeIfAbsent(owner, k -> new ConcurrentSkipListMap<>()).put(key, comment);
+      ownerCounts.computeIfAbsent(owner, k -> new AtomicLong()).incrementAndGet();
+    }
+    index.put(key, comment);
+  }
+
+  @Override
+  public void writePage(String owner, CommentsCursor cursor, int maxComments,
+      CommentsSendWriter writer) throws IOException {
+    if (owner == null) {
+      writePage(index, cursor, maxComments, writer);
+      return;
+    }
+    NavigableMap<IndexKey, Comment> ownerIndex = ownerIndexes.get(owner);
+    writePage(ownerIndex != null ? ownerIndex : new ConcurrentSkipListMap<>(), cursor, maxComments,
+        writer);
+  }
+
+  @Override
+  public long countComments(String owner) {
+    AtomicLong count = ownerCounts.get(owner);
+    return count != null ? count.get() : 0;
+  }
+
+  /* size() of the skip list map walks all of it */
+  @Override
+  public long countAllComments() {
+    return index.size();
+  }
+
+  /* writes the page of the comments in index */
+  private static void writePage(NavigableMap<IndexKey, Comment> index, CommentsCursor cursor,
+      int maxComments, CommentsSendWriter writer) throws IOException {
+    writer.beginComments();
+    // seq is the id of the comment in cursors
+    IndexKey cursorKey =
+        cursor == null ? null : new IndexKey(cursor.getTimestamp(), cursor.getId());
+    if (cursor == null || cursor.isNext()) {
+      // comments older than the cursor
+      NavigableMap<IndexKey, Comment> older =
+          cursor == null ? index : index.tailMap(cursorKey, false);
+      Iterator<Map.Entry<IndexKey, Comment>> comments = older.entrySet().iterator();
+      while (writer.getCommentsNumber() < maxComments && comments.hasNext()) {
+        Map.Entry<IndexKey, Comment> entry = comments.next();
+        writer.writeComment(entry.getValue(), entry.getKey().seq);
+      }
+      writer.endComments(cursor != null, comments.hasNext());
+      return;
+    }
+
+    // comments newer than the cursor, the page is maxComments of them closest to the cursor
+    NavigableMap<IndexKey, Comment> newer = index.headMap(cursorKey, false);
+    Iterator<IndexKey> fromOldest = newer.descendingKeySet().iterator();
+    IndexKey pageNewest = null;
+    for (int i = 0; i < maxComments && fromOldest.hasNext(); i++) {
+      pageNewest = fromOldest.next();
+    }
+    if (pageNewest != null) {
+      for (Map.Entry<IndexKey, Comment> entry : newer.tailMap(pageNewest, true).entrySet()) {
+        writer.writeComment(entry.getValue(), entry.getKey().seq);
+      }
+    }
+    boolean hasOlder = !index.tailMap(cursorKey, true).isEmpty();
+    writer.endComments(fromOldest.hasNext(), hasOlder);
+  }
+
+  @Override
+  public void forEachComment(Consumer<Comment> action) {
+    index.values().forEach(action);
+  }
+
+  @Override
+  public void forEachCommentNewerThan(long timestamp, Consumer<Comment> action) {
+    index.headMap(firstKeyOf(timestamp), false).values().forEach(action);
+  }
+
+  @Override
+  public long getTombstone() {
+    return tombstone.get();
+  }
+
+  @Override
+  public DeleteJobSend deleteAll() {
+    return deleteUpTo(System.currentTimeMillis());
+  }
+
+  @Override
+  public DeleteJobSend getDeleteJob(long jobId) {
+    return deleteJobs.get(jobId);
+  }
+
+  @Override
+  public void setImageVariants(long timestamp, String imageUrl, List<ImageVariant> variants) {
+    for (Map.Entry<IndexKey, Comment> entry
+        : index.subMap(firstKeyOf(timestamp), true, lastKeyOf(timestamp), true).entrySet()) {
+      Comment comment = entry.getValue();
+      if (imageUrl.equals(comment.getCommentImageUrl())) {
+        // a concurrent delete wins, the comment is not brought back
+        Comment withVariants = comment.withImageVariants(variants);
+        if (index.replace(entry.getKey(), comment, withVariants)
+            && comment.getCommentOwner() != null) {
+          ownerIndexes.get(comment.getCommentOwner())
+              .replace(entry.getKey(), comment, withVariants);
+        }
+      }
+    }
+  }
+
+  /* Deletes comments with timestamp not greater than given one, right away */
+  DeleteJobSend deleteUpTo(long timestamp) {
+    tombstone.accumulateAndGet(timestamp, Math::max);
+    long deleted = 0;
+    Iterator<Map.Entry<IndexKey, Comment>> entries =
+        index.tailMap(firstKeyOf(timestamp), true).entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<IndexKey, Comment> entry = entries.next();
+      entries.remove();
+      String owner = entry.getValue().getCommentOwner();
+      if (owner != null && ownerIndexes.get(owner).remove(entry.getKey()) != null) {
+        ownerCounts.get(owner).decrementAndGet();
+      }
+      deleted++;
+    }
+    long jobId = lastJobId.incrementAndGet();
+    DeleteJobSend job = new DeleteJobSend(jobId, "done", deleted, timestamp);
+    deleteJobs.put(jobId, job);
+    return job;
+  }
+
+  /* the key before all comments with given timestamp */
+  private static IndexKey firstKeyOf(long timestamp) {
+    return new IndexKey(timestamp, Long.MAX_VALUE);
+  }
+
+  /* the key after all comments with given timestamp */
+  private static IndexKey lastKeyOf(long timestamp) {
+    return new IndexKey(timestamp, Long.MIN_VALUE);
+  }
+}
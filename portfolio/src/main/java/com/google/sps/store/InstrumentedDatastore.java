@@ -0,0 +1,155 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.store;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DatastoreService which records every call into DatastoreUsage: its operation, the number
+ * of entities read or written and the time it took. A query is recorded by the call which runs it
+ * (asIterator, asList, ...). Entities read later from its iterator, and the time spent fetching
+ * them, are added to the "query" operation as they are read.
+ * Every datastore call of the app goes through it, so it shows in Server-Timing and the metrics;
+ * the async batch deletes of CommentDeleteJobs record themselves when they complete.
+ */
+public final class InstrumentedDatastore {
+
+  /* handles calls of a proxy method on the target */
+  private interface Handler {
+    Object handle(Object target, Method method, Object[] args) throws Throwable;
+  }
+
+  private static final DatastoreService datastore = proxy(DatastoreService.class,
+      DatastoreServiceFactory.getDatastoreService(), InstrumentedDatastore::datastoreCall);
+
+  private InstrumentedDatastore() {}
+
+  public static DatastoreService getDatastoreService() {
+    return datastore;
+  }
+
+  /* records a call of the datastore service, queries are recorded when they run */
+  private static Object datastoreCall(Object target, Method method, Object[] args)
+      throws Throwable {
+    if (method.getName().equals("prepare")) {
+      PreparedQuery query = (PreparedQuery) invoke(target, method, args);
+      return proxy(PreparedQuery.class, query, InstrumentedDatastore::queryCall);
+    }
+    long start = System.nanoTime();
+    long entities = 0;
+    Object result;
+    try {
+      result = invoke(target, method, args);
+      if (method.getName().equals("get")) {
+        entities = result instanceof Map ? ((Map<?, ?>) result).size() : 1;
+      } else if (method.getName().equals("put") || method.getName().equals("delete")) {
+        entities = countEntities(args);
+      }
+    } finally {
+      // failed calls, e.g. get of a missing entity, are recorded too
+      DatastoreUsage.record(method.getName(), entities, System.nanoTime() - start);
+    }
+    return result;
+  }
+
+  /* records a call of the prepared query, which runs it */
+  private static Object queryCall(Object target, Method method, Object[] args) throws Throwable {
+    long start = System.nanoTime();
+    long entities = 0;
+    Object result;
+    try {
+      result = invoke(target, method, args);
+      if (result instanceof List) {
+        // reads all results now
+        entities = ((List<?>) result).size();
+      } else if (method.getName().equals("asSingleEntity")) {
+        entities = result != null ? 1 : 0;
+      }
+    } finally {
+      DatastoreUsage.record("query", entities, System.nanoTime() - start);
+    }
+    return wrapResults(method, result);
+  }
+
+  /* records entities read from iterator of query results, and the time spent reading them */
+  private static Object resultsCall(Object target, Method method, Object[] args)
+      throws Throwable {
+    long start = System.nanoTime();
+    long entities = 0;
+    Object result;
+    try {
+      result = invoke(target, method, args);
+      if (method.getName().equals("next")) {
+        entities = 1;
+      }
+    } finally {
+      DatastoreUsage.recordResults("query", entities, System.nanoTime() - start);
+    }
+    return wrapResults(method, result);
+  }
+
+  /* iterators and iterables of query results are wrapped to record reading them */
+  private static Object wrapResults(Method method, Object result) {
+    Class<?> type = method.getReturnType();
+    if (result != null && !List.class.isAssignableFrom(type)
+        && (Iterator.class.isAssignableFrom(type) || Iterable.class.isAssignableFrom(type))) {
+      return proxy(type, result, InstrumentedDatastore::resultsCall);
+    }
+    return result;
+  }
+
+  /* counts entities or keys passed to put or delete */
+  private static long countEntities(Object[] args) {
+    for (Object arg : args) {
+      if (arg instanceof Iterable) {
+        long count = 0;
+        Iterator<?> entities = ((Iterable<?>) arg).iterator();
+        while (entities.hasNext()) {
+          entities.next();
+          count++;
+        }
+        return count;
+      } else if (arg instanceof Object[]) {
+        return ((Object[]) arg).length;
+      }
+    }
+    // a single entity or key, maybe after a transaction
+    return 1;
+  }
+
+  /* calls the method on the target, throws exceptions of the method as they are */
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /* calls of the proxy methods are passed to handler, except methods of Object */
+  private static <T> T proxy(Class<T> type, Object target, Handler handler) {
+    return type.cast(Proxy.newProxyInstance(InstrumentedDatastore.class.getClassLoader(),
+        new Class<?>[] {type}, (proxy, method, args) -> method.getDeclaringClass() == Object.class
+            ? invoke(target, method, args) : handler.handle(target, method, args)));
+  }
+}
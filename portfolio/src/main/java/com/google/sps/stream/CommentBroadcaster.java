@@ -0,0 +1,158 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.stream;
+
+import com.google.gson.Gson;
+import com.google.sps.data.Comment;
+import com.google.sps.metrics.Metrics;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Sends newly posted comments of this instance to all connected Server-Sent Events clients.
+ * Every client has a small queue of events which is written with non-blocking servlet output,
+ * so no thread waits for slow clients. If the queue of a client is full or its connection
+ * is already closed, the client is dropped. Its EventSource reconnects and the page reloads
+ * the newest comments, events missed while it was disconnected are not sent again.
+ * Failures of one client never reach the code which publishes the comment.
+ */
+public final class CommentBroadcaster {
+
+  private static final int MAX_QUEUED_EVENTS = 64;
+  // tells EventSource to reconnect after 5 seconds, is also the first event to open the stream
+  private static final byte[] RETRY_EVENT = "retry: 5000\n\n".getBytes(StandardCharsets.UTF_8);
+
+  private static final CommentBroadcaster instance = new CommentBroadcaster();
+
+  private final Gson gson = new Gson();
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+  private final LongAdder droppedSubscribers =
+      Metrics.counter("comment_stream_dropped_subscribers_total");
+
+  private CommentBroadcaster() {
+    Metrics.gauge("comment_stream_subscribers", subscribers::size);
+  }
+
+  public static CommentBroadcaster getInstance() {
+    return instance;
+  }
+
+  /* Starts sending comments to the response of the async request */
+  public void subscribe(AsyncContext context) throws IOException {
+    Subscriber subscriber = new Subscriber(context);
+    context.addListener(subscriber);
+    subscriber.events.offer(RETRY_EVENT);
+    // the container calls onWritePossible as soon as the listener is set
+    context.getResponse().getOutputStream().setWriteListener(subscriber);
+    // comments are published only after the output became non-blocking
+    subscribers.add(subscriber);
+  }
+
+  /* Sends comment to all subscribers as json */
+  public void publish(Comment comment) {
+    String event = "id: " + comment.getTimestamp() + "\ndata: " + gson.toJson(comment) + "\n\n";
+    byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+    for (Subscriber subscriber : subscribers) {
+      subscriber.send(bytes);
+    }
+  }
+
+  /* One connected client */
+  private final class Subscriber implements WriteListener, AsyncListener {
+    private final AsyncContext context;
+    private final Queue<byte[]> events = new ArrayBlockingQueue<>(MAX_QUEUED_EVENTS);
+    private boolean flushNeeded;
+
+    private Subscriber(AsyncContext context) {
+      this.context = context;
+    }
+
+    private void send(byte[] event) {
+      if (!events.offer(event)) {
+        droppedSubscribers.increment();
+        close();
+        return;
+      }
+      try {
+        onWritePossible();
+      } catch (IOException | RuntimeException e) {
+        // the response throws IllegalStateException if the request completed or timed out
+        close();
+      }
+    }
+
+    /* Writes queued events while the output accepts them without blocking */
+    @Override
+    public synchronized void onWritePossible() throws IOException {
+      ServletOutputStream out = context.getResponse().getOutputStream();
+      while (out.isReady()) {
+        byte[] event = events.poll();
+        if (event == null) {
+          if (!flushNeeded) {
+            return;
+          }
+          flushNeeded = false;
+          out.flush();
+          continue;
+        }
+        out.write(event);
+        flushNeeded = true;
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      close();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      subscribers.remove(this);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {}
+
+    private void close() {
+      if (subscribers.remove(this)) {
+        try {
+          context.complete();
+        } catch (IllegalStateException e) {
+          // the request is already completed
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,181 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.upload;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.sps.metrics.Metrics;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Blobstore upload urls created in advance, so pages don't wait for createUploadUrl.
+ * Every url is given out once, the oldest first. Urls of the forward urls set by
+ * "portfolio.upload.pool.forwardUrls" system property (comma separated, default "/comments")
+ * are pooled, "portfolio.upload.pool.size" of each (default 10, 0 turns the pool off).
+ * Every take starts a request thread which creates a url in place of the taken one, while
+ * the request goes on. Background threads would need manual or basic scaling, so urls which
+ * expire in the pool are dropped by the takes instead of replaced in advance.
+ */
+public final class UploadUrlPool {
+  private static final Logger log = Logger.getLogger(UploadUrlPool.class.getName());
+
+  // blobstore upload urls stop working 10 minutes after they are created
+  private static final long URL_LIFETIME_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  // the user gets at least that long to fill the form, older urls are dropped
+  private static final long MIN_REMAINING_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  private static final UploadUrlPool instance = new UploadUrlPool(
+      System.getProperty("portfolio.upload.pool.forwardUrls", "/comments").split(","),
+      Integer.getInteger("portfolio.upload.pool.size", 10));
+
+  /* upload url with the time it was created */
+  private static final class PooledUrl {
+    private final String url;
+    private final long createdMillis;
+
+    private PooledUrl(String url, long createdMillis) {
+      this.url = url;
+      this.createdMillis = createdMillis;
+    }
+
+    private boolean isFresh(long nowMillis) {
+      return nowMillis - createdMillis <= URL_LIFETIME_MILLIS - MIN_REMAINING_MILLIS;
+    }
+  }
+
+  /* urls of one forward url, from the oldest to the newest */
+  private static final class Pool {
+    private final String forwardUrl;
+    private final Deque<PooledUrl> urls = new ConcurrentLinkedDeque<>();
+    // size of the deque is not constant time
+    private final AtomicInteger size = new AtomicInteger();
+    // urls being created, they count towards the size so the pool is not overfilled
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder expired;
+
+    private Pool(String forwardUrl) {
+      this.forwardUrl = forwardUrl;
+      String label = "{forwardurl=\"" + forwardUrl + "\"}";
+      hits = Metrics.counter("upload_url_pool_hits_total" + label);
+      misses = Metrics.counter("upload_url_pool_misses_total" + label);
+      expired = Metrics.counter("upload_url_pool_expired_total" + label);
+      Metrics.gauge("upload_url_pool_size" + label, size::get);
+    }
+
+    /* removes the oldest url, or returns null if the pool is empty */
+    private PooledUrl poll() {
+      PooledUrl url = urls.pollFirst();
+      if (url != null) {
+        size.decrementAndGet();
+      }
+      return url;
+    }
+  }
+
+  private final BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+  private final int poolSize;
+  // is only read after construction
+  private final Map<String, Pool> pools = new HashMap<>();
+  private final boolean disabled;
+
+  private UploadUrlPool(String[] forwardUrls, int poolSize) {
+    this.poolSize = poolSize;
+    for (String forwardUrl : forwardUrls) {
+      if (!forwardUrl.trim().isEmpty()) {
+        pools.put(forwardUrl.trim(), new Pool(forwardUrl.trim()));
+      }
+    }
+    disabled = poolSize <= 0 || pools.isEmpty();
+  }
+
+  public static UploadUrlPool getInstance() {
+    return instance;
+  }
+
+  /**
+   * Returns upload url which forwards to forwardUrl, from the pool if there is one.
+   * Throws IllegalArgumentException if forwardUrl is invalid, as createUploadUrl does.
+   */
+  public String getUploadUrl(String forwardUrl) {
+    Pool pool = pools.get(forwardUrl);
+    if (pool == null || disabled) {
+      return blobstoreService.createUploadUrl(forwardUrl);
+    }
+
+    long now = System.currentTimeMillis();
+    PooledUrl url;
+    while ((url = pool.poll()) != null) {
+      if (url.isFresh(now)) {
+        pool.hits.increment();
+        refill(pool);
+        return url.url;
+      }
+      pool.expired.increment();
+    }
+    pool.misses.increment();
+    refill(pool);
+    return blobstoreService.createUploadUrl(forwardUrl);
+  }
+
+  /* Starts a request thread which adds one url to the pool, unless the pool is full
+   * with the urls being created. The pool starts empty, so every miss grows it by one.
+   */
+  private void refill(Pool pool) {
+    int pending;
+    do {
+      pending = pool.pending.get();
+      if (pool.size.get() + pending >= poolSize) {
+        return;
+      }
+    } while (!pool.pending.compareAndSet(pending, pending + 1));
+
+    try {
+      // App Engine API calls can only be made from request threads
+      Thread thread = ThreadManager.currentRequestThreadFactory().newThread(() -> {
+        try {
+          long created = System.currentTimeMillis();
+          String url = blobstoreService.createUploadUrl(pool.forwardUrl);
+          pool.urls.addLast(new PooledUrl(url, created));
+          pool.size.incrementAndGet();
+        } catch (RuntimeException e) {
+          // the next take tries again
+          log.log(Level.WARNING, "Could not refill upload urls for " + pool.forwardUrl, e);
+        } finally {
+          pool.pending.decrementAndGet();
+        }
+      });
+      if (thread == null) {
+        pool.pending.decrementAndGet();
+        return;
+      }
+      thread.start();
+    } catch (RuntimeException e) {
+      // the thread did not start, so it will not clear its pending url
+      pool.pending.decrementAndGet();
+      log.log(Level.WARNING, "Could not start upload url refill for " + pool.forwardUrl, e);
+    }
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.upload;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.sps.metrics.Metrics;
+import com.google.sps.store.InstrumentedDatastore;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Index of uploaded images by their content, so an image uploaded again reuses the blob
+ * and the serving url of the first upload. Blobstore computes MD5 of every blob as it is stored,
+ * the index is keyed by it and the size. Entries are "UploadedImage" entities, looked up in
+ * a small in-process LRU map first. Its capacity is set by "portfolio.images.dedup.cacheSize"
+ * system property (default 1000).
+ */
+public final class UploadedImageIndex {
+
+  private static final String INDEX_KIND = "UploadedImage";
+
+  private static final UploadedImageIndex instance =
+      new UploadedImageIndex(Integer.getInteger("portfolio.images.dedup.cacheSize", 1000));
+
+  /* blob of an uploaded image with its serving url */
+  public static final class StoredImage {
+    private final BlobKey blobKey;
+    private final String servingUrl;
+
+    private StoredImage(BlobKey blobKey, String servingUrl) {
+      this.blobKey = blobKey;
+      this.servingUrl = servingUrl;
+    }
+
+    public BlobKey getBlobKey() {
+      return blobKey;
+    }
+
+    public String getServingUrl() {
+      return servingUrl;
+    }
+  }
+
+  private final BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+  private final DatastoreService datastore = InstrumentedDatastore.getDatastoreService();
+  private final Map<String, StoredImage> localCache;
+
+  private final LongAdder localHits =
+      Metrics.counter("uploaded_image_dedup_hits_total{tier=\"local\"}");
+  private final LongAdder datastoreHits =
+      Metrics.counter("uploaded_image_dedup_hits_total{tier=\"datastore\"}");
+  private final LongAdder misses = Metrics.counter("uploaded_image_dedup_misses_total");
+  private final LongAdder savedBytes = Metrics.counter("uploaded_image_dedup_saved_bytes_total");
+
+  private UploadedImageIndex(int capacity) {
+    localCache = new LinkedHashMap<String, StoredImage>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, StoredImage> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  public static UploadedImageIndex getInstance() {
+    return instance;
+  }
+
+  /**
+   * Returns the stored image with the content of the uploaded blob. If the same content was
+   * uploaded before, the new blob is deleted and the earlier blob is returned. Otherwise the blob
+   * is indexed with the url returned by servingUrl, which is only called for new content.
+   */
+  public StoredImage store(BlobInfo blobInfo, Function<BlobKey, String> servingUrl) {
+    BlobKey blobKey = blobInfo.getBlobKey();
+    // the dev server may not compute the hash, such blobs are never shared
+    if (blobInfo.getMd5Hash() == null) {
+      misses.increment();
+      return new StoredImage(blobKey, servingUrl.apply(blobKey));
+    }
+    String hash = blobInfo.getMd5Hash() + "-" + blobInfo.getSize();
+
+    StoredImage stored;
+    synchronized (localCache) {
+      stored = localCache.get(hash);
+    }
+    if (stored != null) {
+      localHits.increment();
+      return reuse(stored, blobInfo);
+    }
+
+    Key key = KeyFactory.createKey(INDEX_KIND, hash);
+    try {
+      Entity entity = datastore.get(key);
+      stored = new StoredImage((BlobKey) entity.getProperty("blobKey"),
+          (String) entity.getProperty("servingUrl"));
+      datastoreHits.increment();
+      putLocal(hash, stored);
+      return reuse(stored, blobInfo);
+    } catch (EntityNotFoundException e) {
+      // the first upload of this content
+    }
+
+    stored = new StoredImage(blobKey, servingUrl.apply(blobKey));
+    /* Two first uploads of the same content at once both keep their blobs and urls,
+     * and the index keeps the last one. No blob the index doesn't point to is ever shared.
+     */
+    Entity entity = new Entity(key);
+    entity.setUnindexedProperty("blobKey", blobKey);
+    entity.setUnindexedProperty("servingUrl", stored.servingUrl);
+    datastore.put(entity);
+    misses.increment();
+    putLocal(hash, stored);
+    return stored;
+  }
+
+  /* deletes the duplicate blob, the stored image is used instead */
+  private StoredImage reuse(StoredImage stored, BlobInfo duplicate) {
+    if (!stored.blobKey.equals(duplicate.getBlobKey())) {
+      blobstoreService.delete(duplicate.getBlobKey());
+      savedBytes.add(duplicate.getSize());
+    }
+    return stored;
+  }
+
+  private void putLocal(String hash, StoredImage stored) {
+    synchronized (localCache) {
+      localCache.put(hash, stored);
+    }
+  }
+}
@@ -14,6 +14,13 @@
 
 "use strict"
 
+// stream of comments posted after the page was loaded
+let commentStream;
+// times the stream was opened, it is opened again after every reconnect
+let commentStreamOpens = 0;
+// height of comment images in style.css
+const COMMENT_IMAGE_HEIGHT = 100;
+
 /* is called when page loads */
 document.addEventListener("DOMContentLoaded", () => {
     // set max-comments variable
@@ -53,16 +60,75 @@ document.addEventListener("DOMContentLoaded", () => {
     // add validation to comment-add form
     commentAddForm.addEventListener("submit", commentAddFormValidate);
 
-    // add action attribute to comment-add form
-    fetchActionUrl(commentAddForm, "/blobstore-upload-url?forwardurl=/comments");
-
-    // check if user is logged in and modify page depending on it
-    checkAuth();
+    // listen to new comments, loadComments decides how to show them
+    commentStream = new EventSource("/comments/stream");
+    commentStream.addEventListener("open", () => {
+        commentStreamOpens++;
+    });
 
-    // initially load comments
-    loadComments(maxComments);
+    /* get upload url, login status and the first page of comments in one request.
+     * Parts which are missing in the response are fetched from their own servlets.
+     * The first page of the last load is sent back by its ETag, and is not sent again if it is current
+     */
+    const storedPage = readStoredPage(maxComments);
+    let bootstrapUrl = `/bootstrap?maxcomments=${maxComments}`;
+    if (storedPage !== null) {
+        bootstrapUrl += `&commentsetag=${encodeURIComponent(storedPage.etag)}`;
+    }
+    fetch(bootstrapUrl).then((response) => (response.json()))
+            .catch((error) => {
+                console.log("bootstrap fetch error: " + error);
+                return {};
+            }).then((json) => {
+                // add action attribute to comment-add form
+                if (json.uploadUrl !== undefined) {
+                    commentAddForm.setAttribute("action", json.uploadUrl);
+                } else {
+                    fetchActionUrl(commentAddForm, "/blobstore-upload-url?forwardurl=/comments");
+                }
+
+                // modify page depending on whether user is logged in
+                if (json.auth !== undefined) {
+                    showAuth(json.auth);
+                } else {
+                    checkAuth();
+                }
+
+                // initially load comments
+                if (json.commentsNotModified && storedPage !== null) {
+                    loadComments(maxComments, storedPage.page);
+                } else {
+                    if (json.comments !== undefined && json.commentsEtag !== undefined) {
+                        storePage(maxComments, json.commentsEtag, json.comments);
+                    }
+                    loadComments(maxComments, json.comments);
+                }
+            });
 });
 
+/* returns the first page of maxComments comments stored by the last load as {etag, page},
+ * or null if there is none
+ */
+function readStoredPage(maxComments) {
+    try {
+        const stored = localStorage.getItem(`comments-page-${maxComments}`);
+        return stored === null ? null : JSON.parse(stored);
+    } catch (error) {
+        // storage can be disabled or the entry broken
+        return null;
+    }
+}
+
+/* stores the first page of maxComments comments with its ETag for the next load */
+function storePage(maxComments, etag, page) {
+    try {
+        localStorage.setItem(`comments-page-${maxComments}`, JSON.stringify({ etag: etag, page: page }));
+    } catch (error) {
+        // storage can be disabled or full, the page is loaded again then
+        console.log("store comments page error: " + error);
+    }
+}
+
 /* sets the url fetched from fetchUrl as action attribute to form
  */
 function fetchActionUrl(form, fetchUrl) {
@@ -76,38 +142,42 @@ function fetchActionUrl(form, fetchUrl) {
  */
 function checkAuth() {
     // ask AuthServlet if user is logged in and read json response
-    fetch("/auth").then((response) => (response.json())).then((json) => {
-        if (json.isLoggedIn) {
-            // replace login button in navbar with logout button
-            const logoutNav = document.createElement("a");
-            logoutNav.innerHTML = "Logout";
-            logoutNav.classList.add("right-align");
-            logoutNav.setAttribute("id", "logout-nav");
-            logoutNav.setAttribute("href", json.url);
-            const loginNav = document.getElementById("login-nav");
-            loginNav.replaceWith(logoutNav);
-
-            // remove text telling to login from comments section
-            const loginComments = document.getElementById("login-comments").parentElement;
-            loginComments.remove();
-
-            // unhide form
-            const commentAddForm = document.getElementById("comment-add-form");
-            commentAddForm.classList.remove("invisible");
-
-            // unhide comments-delete button
-            const commentsDeleteButton = document.getElementById("comments-delete");
-            commentsDeleteButton.classList.remove("invisible");
-        } else {
-            // add login url to navbar button
-            const loginNav = document.getElementById("login-nav");
-            loginNav.setAttribute("href", json.url);
-
-            // add login url to the text in comments section
-            const loginCommentsLink = document.getElementById("login-comments");
-            loginCommentsLink.setAttribute("href", json.url);
-        }
-    });
+    fetch("/auth").then((response) => (response.json())).then(showAuth);
+}
+
+/* add login/logout url from auth json (AuthSend) to page and hide/unhide form and delete button
+ */
+function showAuth(json) {
+    if (json.isLoggedIn) {
+        // replace login button in navbar with logout button
+        const logoutNav = document.createElement("a");
+        logoutNav.innerHTML = "Logout";
+        logoutNav.classList.add("right-align");
+        logoutNav.setAttribute("id", "logout-nav");
+        logoutNav.setAttribute("href", json.url);
+        const loginNav = document.getElementById("login-nav");
+        loginNav.replaceWith(logoutNav);
+
+        // remove text telling to login from comments section
+        const loginComments = document.getElementById("login-comments").parentElement;
+        loginComments.remove();
+
+        // unhide form
+        const commentAddForm = document.getElementById("comment-add-form");
+        commentAddForm.classList.remove("invisible");
+
+        // unhide comments-delete button
+        const commentsDeleteButton = document.getElementById("comments-delete");
+        commentsDeleteButton.classList.remove("invisible");
+    } else {
+        // add login url to navbar button
+        const loginNav = document.getElementById("login-nav");
+        loginNav.setAttribute("href", json.url);
+
+        // add login url to the text in comments section
+        const loginCommentsLink = document.getElementById("login-comments");
+        loginCommentsLink.setAttribute("href", json.url);
+    }
 }
 
 /* validation of comment-add form
@@ -127,49 +197,91 @@ function commentAddFormValidate(event) {
     }
 }
 
-/* load maxComments comments and put them on page */
-function loadComments(maxComments){
-    // properties of comments currently on page. for request
-    let lastTimestamp;
-    let commentsOnPage;
-    
+/* load maxComments comments and put them on page.
+ * firstPage is the json of the first page if it is already loaded
+ */
+function loadComments(maxComments, firstPage) {
+    // cursors to the pages around the current one. null if there is no such page
+    let nextCursor = null;
+    let previousCursor = null;
+    // timestamp of the newest comment on page, to skip streamed comments which are already shown
+    let newestTimestamp = 0;
+
+    // put the page of comments (CommentsSend json) on page
+    const show = function(json, cursor) {
+        // keep current page if it was the last one in requested direction
+        if (cursor !== undefined && json.comments.length === 0) {
+            return;
+        }
+
+        const commentsContainer = document.querySelector(".comments-container");
+        commentsContainer.innerHTML = "";
+        json.comments.forEach((comment) => {
+            commentsContainer.append(createCommentElement(comment));
+        });
+
+        // update current values for future requests
+        nextCursor = json.nextCursor;
+        previousCursor = json.previousCursor;
+        newestTimestamp = json.comments.length > 0 ? json.comments[0].timestamp : 0;
+    };
+
     // load comments from DataServlet and read them as json
-    const load = function(direction) {
+    const load = function(cursor) {
         // include parameters in fetchURL
         let fetchURL = `/comments?maxcomments=${maxComments}`;
 
-        if (lastTimestamp !== undefined) {
-            fetchURL += `&timestamp=${lastTimestamp}`;
-        }
-        if (direction !== undefined) {
-            fetchURL += `&direction=${direction}`;
-        }
-        if (commentsOnPage !== undefined) {
-            fetchURL += `&commentsonpage=${commentsOnPage}`;
+        if (cursor !== undefined) {
+            fetchURL += `&cursor=${encodeURIComponent(cursor)}`;
         }
 
         // fetch data
-        fetch(fetchURL).then((response) => (response.json())).then((json) => {
-              const commentsContainer = document.querySelector(".comments-container");
-              commentsContainer.innerHTML = "";
-              json.comments.forEach((comment) => {
-              commentsContainer.append(createCommentElement(comment));
-            });
-
-            // update current values for future requests
-            lastTimestamp = json.lastTimestamp;
-            commentsOnPage = json.comments.length;
-        }).catch((error) => console.log("load comments fetch error: " + error));
+        fetch(fetchURL).then((response) => (response.json())).then((json) => show(json, cursor))
+                .catch((error) => console.log("load comments fetch error: " + error));
     };
 
     // actually load comments
-    load();
+    if (firstPage !== undefined) {
+        show(firstPage);
+    } else {
+        load();
+    }
 
     // set event listeners for pagination
     const rightArrow = document.getElementById("pagination-right");
-    rightArrow.onclick =  () => load("next");
+    rightArrow.onclick = () => {
+        if (nextCursor) {
+            load(nextCursor);
+        }
+    };
     const leftArrow = document.getElementById("pagination-left");
-    leftArrow.onclick =  () => load("previous");
+    leftArrow.onclick = () => {
+        if (previousCursor) {
+            load(previousCursor);
+        }
+    };
+
+    /* put new comments on top of the page if the newest comments are on page.
+     * The page grows instead of dropping its last comment, so nextCursor stays valid.
+     */
+    if (commentStream !== undefined) {
+        commentStream.onmessage = (event) => {
+            const comment = JSON.parse(event.data);
+            if (previousCursor || maxComments === 0 || comment.timestamp <= newestTimestamp) {
+                return;
+            }
+            newestTimestamp = comment.timestamp;
+            const commentsContainer = document.querySelector(".comments-container");
+            commentsContainer.prepend(createCommentElement(comment));
+        };
+
+        // comments posted while the stream was disconnected are missed, so they are reloaded
+        commentStream.onopen = () => {
+            if (commentStreamOpens > 1 && !previousCursor) {
+                load();
+            }
+        };
+    }
 }
 
 /* delete all comments from database */
@@ -216,6 +328,15 @@ function createCommentElement(comment) {
         const commentImage = document.createElement("img");
         commentImage.classList.add("comment-image");
         commentImage.setAttribute("src", comment.commentImageUrl);
+        // smaller copies let the browser load the image of the size it is shown
+        if (comment.commentImageVariants !== undefined) {
+            commentImage.setAttribute("srcset", comment.commentImageVariants
+                    .map((variant) => `${variant.url} ${variant.width}w`).join(", "));
+            // images are shown COMMENT_IMAGE_HEIGHT high, so their width depends on the aspect ratio
+            const variant = comment.commentImageVariants[0];
+            const shownWidth = Math.round(COMMENT_IMAGE_HEIGHT * variant.width / variant.height);
+            commentImage.setAttribute("sizes", `${shownWidth}px`);
+        }
         commentElement.append(commentImage);
     }
 